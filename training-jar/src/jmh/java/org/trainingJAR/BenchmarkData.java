@@ -0,0 +1,79 @@
+package org.trainingJAR;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+// Synthetic inputs shared by the benchmarks
+public class BenchmarkData {
+
+    public static final String CNN_CONFIG = "{"
+            + "\"dataShape\": [64, 64, 3, 1], \"isNotRegression\": true, \"activation\": \"RELU\", \"updater\": \"ADAM\","
+            + "\"outputs\": 10, \"batchSize\": 32,"
+            + "\"layer0\": {\"index\": 0, \"type\": \"convolutional\", \"filterShape\": [3, 3], \"filterChannels\": 16,"
+            + " \"stride\": [1, 1], \"convolutionMode\": \"same\", \"activation\": \"RELU\"},"
+            + "\"layer1\": {\"index\": 1, \"type\": \"pooling\", \"poolingShape\": [2, 2], \"stride\": [2, 2],"
+            + " \"poolingType\": \"max\", \"convolutionMode\": \"same\"},"
+            + "\"layer2\": {\"index\": 2, \"type\": \"convolutional\", \"filterShape\": [3, 3], \"filterChannels\": 32,"
+            + " \"stride\": [1, 1], \"convolutionMode\": \"same\", \"activation\": \"RELU\"},"
+            + "\"layer3\": {\"index\": 3, \"type\": \"pooling\", \"poolingShape\": [2, 2], \"stride\": [2, 2],"
+            + " \"poolingType\": \"max\", \"convolutionMode\": \"same\"},"
+            + "\"layer4\": {\"index\": 4, \"type\": \"dense\", \"outputs\": 128, \"dropoutRate\": 0.5},"
+            + "\"layer5\": {\"index\": 5, \"type\": \"output\", \"lossFunction\": \"MCXENT\", \"activation\": \"SOFTMAX\"}"
+            + "}";
+
+    public static final String DENSE_CONFIG = "{"
+            + "\"dataShape\": [784, 1, 1, 1], \"isNotRegression\": true, \"activation\": \"RELU\", \"updater\": \"SGD\","
+            + "\"outputs\": 10,"
+            + "\"layer0\": {\"index\": 0, \"type\": \"dense\", \"outputs\": 256, \"regularisationRateL2\": 0.0001},"
+            + "\"layer1\": {\"index\": 1, \"type\": \"dense\", \"outputs\": 128},"
+            + "\"layer2\": {\"index\": 2, \"type\": \"output\", \"lossFunction\": \"MCXENT\", \"activation\": \"SOFTMAX\"}"
+            + "}";
+
+    public static Map<String, Object> config(String name) {
+        return JsonParser.generateMap(name.equals("cnn") ? CNN_CONFIG : DENSE_CONFIG);
+    }
+
+    // Writes random PNG images and the matching csvfile.txt with one of ten classes per image
+    public static File writeImages(int count, int width, int height) throws IOException {
+        File dir = Files.createTempDirectory("bench-images").toFile();
+        Random random = new Random(42);
+        try (Writer csv = new FileWriter(new File(dir, "csvfile.txt"))) {
+            for (int i = 0; i < count; i++) {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        image.setRGB(x, y, random.nextInt(0xFFFFFF));
+                    }
+                }
+                String name = "img" + i + ".png";
+                ImageIO.write(image, "png", new File(dir, name));
+                csv.write(name + ",class" + random.nextInt(10) + "\n");
+            }
+        }
+        return dir;
+    }
+
+    // Two labels of one of classes per file, or two values for regression
+    public static File writeLabels(int rows, int classes, boolean isNotRegression) throws IOException {
+        File dir = Files.createTempDirectory("bench-labels").toFile();
+        Random random = new Random(42);
+        try (Writer csv = new FileWriter(new File(dir, "csvfile.txt"))) {
+            for (int i = 0; i < rows; i++) {
+                if (isNotRegression) {
+                    csv.write("img" + i + ".jpg,class" + random.nextInt(classes) + ",class" + random.nextInt(classes) + "\n");
+                }
+                else {
+                    csv.write("img" + i + ".jpg," + random.nextFloat() + "," + random.nextFloat() + "\n");
+                }
+            }
+        }
+        return dir;
+    }
+}
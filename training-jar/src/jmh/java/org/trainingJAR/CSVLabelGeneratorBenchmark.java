@@ -0,0 +1,58 @@
+package org.trainingJAR;
+
+import org.datavec.api.writable.Writable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+// The 10M rows take several GB with the file names of the lookups and a second generator being built
+@Fork(jvmArgsAppend = "-Xmx8g")
+public class CSVLabelGeneratorBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    public int rows;
+
+    // Only used for classification
+    @Param({"10", "1000"})
+    public int classes;
+
+    @Param({"classification", "regression"})
+    public String labels;
+
+    private boolean isNotRegression;
+
+    private File dir;
+    private CSVLabelGenerator generator;
+    private String[] paths;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        isNotRegression = labels.equals("classification");
+        dir = BenchmarkData.writeLabels(rows, classes, isNotRegression);
+        generator = new CSVLabelGenerator(isNotRegression, dir.getPath(), "csvfile.txt");
+        paths = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            paths[i] = dir.getPath() + File.separator + "img" + i + ".jpg";
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public CSVLabelGenerator construct() throws IOException {
+        return new CSVLabelGenerator(isNotRegression, dir.getPath(), "csvfile.txt");
+    }
+
+    // Run with the gc profiler, gc.alloc.rate.norm is the allocation per lookup
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Writable getLabelForPath() {
+        String path = paths[next];
+        next = next + 1 == paths.length ? 0 : next + 1;
+        return generator.getLabelForPath(path);
+    }
+}
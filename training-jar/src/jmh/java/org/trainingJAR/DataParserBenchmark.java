@@ -0,0 +1,52 @@
+package org.trainingJAR;
+
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Time per image for one full pass of the training iterator over synthetic 64x64 RGB images
+// With more decode threads the time per image should drop close to linearly up to the number of cores
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(DataParserBenchmark.IMAGES)
+public class DataParserBenchmark {
+
+    static final int IMAGES = 512;
+    private static final int[] DATA_SHAPE = {64, 64, 3, 1};
+
+    @Param({"1", "32"})
+    public int batchSize;
+
+    @Param({"0", "2"})
+    public int prefetchBuffer;
+
+    @Param({"1", "4"})
+    public int decodeThreads;
+
+    private CSVLabelGenerator labelGenerator;
+    private List<URI> files;
+
+    @Setup
+    public void setup() throws Exception {
+        File dir = BenchmarkData.writeImages(IMAGES, DATA_SHAPE[0], DATA_SHAPE[1]);
+        labelGenerator = new CSVLabelGenerator(true, dir.getPath(), "csvfile.txt");
+        files = DataParser.readFiles(dir.getPath(), "csvfile.txt");
+    }
+
+    @Benchmark
+    public long iterate() throws Exception {
+        DataSetIterator decoder = DataParser.createDecoder(DATA_SHAPE, files, labelGenerator, batchSize, decodeThreads, null);
+        DataSetIterator iterator = DataParser.createDataSetIterator(decoder, prefetchBuffer, new ImagePreProcessingScaler(0, 1));
+        long examples = 0;
+        while (iterator.hasNext()) {
+            examples += iterator.next().numExamples();
+        }
+        return examples;
+    }
+}
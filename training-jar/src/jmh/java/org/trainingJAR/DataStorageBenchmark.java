@@ -0,0 +1,71 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+Time per image to serve one epoch of collected 64x64 RGB batches, including the expansion of compact storage.
+The memory the collected features take is reported next to it as epoch:featureBytes.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(DataStorageBenchmark.IMAGES)
+public class DataStorageBenchmark {
+
+    static final int IMAGES = 2048;
+    private static final int BATCH_SIZE = 32;
+
+    @Param({"float", "uint8", "fp16"})
+    public String storage;
+
+    private DataStorage dataStorage;
+    private List<DataSet> data;
+    private long featureBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long featureBytes;
+    }
+
+    @Setup
+    public void setup() {
+        Map<String, Object> params = BenchmarkData.config("cnn");
+        params.put("dataStorage", storage);
+        dataStorage = DataStorage.fromParams(params, new ImagePreProcessingScaler(0, 1));
+
+        List<DataSet> decoded = new ArrayList<>();
+        for (int i = 0; i < IMAGES / BATCH_SIZE; i++) {
+            // Whole pixel values, as the image decoder produces them
+            INDArray pixels = Nd4j.rand(new int[]{BATCH_SIZE, 3, 64, 64}).muli(255).castTo(DataType.UINT8).castTo(DataType.FLOAT);
+            decoded.add(new DataSet(pixels, Nd4j.zeros(BATCH_SIZE, 10)));
+        }
+        DataSetIterator iterator = new ExistingDataSetIterator(decoded);
+        iterator.setPreProcessor(dataStorage.getIteratorNormalizer());
+        data = DataParser.collectDataSets(iterator, dataStorage);
+        featureBytes = (long) ((Map<?, ?>) TrainingMetrics.get().snapshot().get("dataLoading")).get("featureBytes");
+    }
+
+    @Benchmark
+    public long epoch(Footprint footprint) {
+        footprint.featureBytes = featureBytes;
+        DataSetIterator iterator = DataParser.iterateDataSets(data, null, dataStorage);
+        long examples = 0;
+        while (iterator.hasNext()) {
+            examples += iterator.next().numExamples();
+        }
+        return examples;
+    }
+}
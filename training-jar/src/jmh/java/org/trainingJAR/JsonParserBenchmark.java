@@ -0,0 +1,29 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonParserBenchmark {
+
+    @Param({"cnn", "dense"})
+    public String config;
+
+    private Map<String, Object> params;
+
+    @Setup
+    public void setup() {
+        params = BenchmarkData.config(config);
+    }
+
+    @Benchmark
+    public MultiLayerConfiguration parseNetworkFile() throws IOException {
+        return JsonParser.parseNetworkFile(params);
+    }
+}
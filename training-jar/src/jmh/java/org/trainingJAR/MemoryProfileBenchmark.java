@@ -0,0 +1,75 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+Time per batch of the CNN with the workspaces off, with the defaults and with the auto profile. The off-heap
+growth per iteration so far is reported next to it as fit:offHeapGrowthBytes.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@OperationsPerInvocation(MemoryProfileBenchmark.BATCHES)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class MemoryProfileBenchmark {
+
+    static final int BATCHES = 8;
+    private static final int BATCH_SIZE = 32;
+
+    @Param({"none", "default", "auto"})
+    public String profile;
+
+    private MultiLayerNetwork network;
+    private List<DataSet> data;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class OffHeap {
+        public long offHeapGrowthBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Map<String, Object> params = BenchmarkData.config("cnn");
+        if (profile.equals("none")) {
+            params.put("trainingWorkspaceMode", "none");
+            params.put("inferenceWorkspaceMode", "none");
+        }
+        else {
+            params.put("memoryProfile", profile);
+        }
+        network = new MultiLayerNetwork(JsonParser.parseNetworkFile(params));
+        network.init();
+        network.setListeners(TrainingMetrics.get().iterationListener());
+        TrainingMetrics.get().recordMemoryProfile(MemoryProfile.describe(network.getLayerWiseConfigurations(),
+                JsonParser.getInputType(params), BATCH_SIZE));
+
+        data = new ArrayList<>();
+        for (int i = 0; i < BATCHES; i++) {
+            INDArray labels = Nd4j.zeros(BATCH_SIZE, 10);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                labels.putScalar(j, (i + j) % 10, 1);
+            }
+            data.add(new DataSet(Nd4j.rand(new int[]{BATCH_SIZE, 3, 64, 64}), labels));
+        }
+    }
+
+    @Benchmark
+    public MultiLayerNetwork fit(OffHeap offHeap) {
+        for (DataSet dataSet : data) {
+            network.fit(dataSet);
+        }
+        offHeap.offHeapGrowthBytes = (long) ((Map<?, ?>) TrainingMetrics.get().snapshot().get("iterations")).get("offHeapGrowthBytes");
+        return network;
+    }
+}
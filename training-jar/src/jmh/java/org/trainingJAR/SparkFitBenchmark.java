@@ -0,0 +1,75 @@
+package org.trainingJAR;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.spark.impl.multilayer.SparkDl4jMultiLayer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+One SparkDl4jMultiLayer.fit epoch over synthetic data, set up the same way as SparkEngine. Comparing the scores across
+workersPerNode gives the scaling curve, and -p master=local-cluster[2,1,4096] runs it on separate executor JVMs.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SparkFitBenchmark {
+
+    private static final int EXAMPLES = 1024;
+    private static final int BATCH_SIZE = 32;
+
+    @Param({"local[*]"})
+    public String master;
+
+    @Param({"1", "2", "4"})
+    public int workersPerNode;
+
+    private JavaSparkContext sc;
+    private SparkDl4jMultiLayer sparkNetwork;
+    private JavaRDD<DataSet> dataRDD;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        System.setProperty("spark.master", master);
+        sc = new JavaSparkContext(SparkEngine.createSparkConf("DL4J Spark Benchmark"));
+
+        Map<String, Object> params = BenchmarkData.config("cnn");
+        params.put("batchSize", BATCH_SIZE);
+        params.put("workersPerNode", workersPerNode);
+        MultiLayerNetwork network = new MultiLayerNetwork(JsonParser.parseNetworkFile(params));
+        network.init();
+
+        List<DataSet> data = new ArrayList<>();
+        for (int i = 0; i < EXAMPLES / BATCH_SIZE; i++) {
+            INDArray labels = Nd4j.zeros(BATCH_SIZE, 10);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                labels.putScalar(j, (i + j) % 10, 1);
+            }
+            data.add(new DataSet(Nd4j.rand(new int[]{BATCH_SIZE, 3, 64, 64}), labels));
+        }
+        dataRDD = sc.parallelize(data).cache();
+        dataRDD.count();
+
+        sparkNetwork = new SparkDl4jMultiLayer(sc, network, SparkEngine.createTrainingMaster(params, false));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sc.stop();
+    }
+
+    @Benchmark
+    public MultiLayerNetwork fitEpoch() {
+        return sparkNetwork.fit(dataRDD);
+    }
+}
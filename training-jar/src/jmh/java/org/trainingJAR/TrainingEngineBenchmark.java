@@ -0,0 +1,95 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+The Spark and parallel engines on the same network and data. fitEpoch is the steady state of an epoch.
+coldStart also pays for setting the engine up including a new Spark context, as a process per job did,
+warmStart sets a job up on the shared context that the job server keeps running.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class TrainingEngineBenchmark {
+
+    private static final int EXAMPLES = 1024;
+    private static final int BATCH_SIZE = 32;
+
+    @Param({"spark", "parallel"})
+    public String engine;
+
+    private Map<String, Object> params;
+    private List<DataSet> data;
+    private TrainingEngine trainingEngine;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        params = BenchmarkData.config("cnn");
+        params.put("batchSize", BATCH_SIZE);
+        params.put("engine", engine);
+
+        data = new ArrayList<>();
+        for (int i = 0; i < EXAMPLES / BATCH_SIZE; i++) {
+            INDArray labels = Nd4j.zeros(BATCH_SIZE, 10);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                labels.putScalar(j, (i + j) % 10, 1);
+            }
+            data.add(new DataSet(Nd4j.rand(new int[]{BATCH_SIZE, 3, 64, 64}), labels));
+        }
+        trainingEngine = createEngine();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        trainingEngine.close();
+        SparkEngine.stopSharedContext();
+    }
+
+    private TrainingEngine createEngine() throws IOException {
+        MultiLayerNetwork network = new MultiLayerNetwork(JsonParser.parseNetworkFile(params));
+        network.init();
+        if (engine.equals("parallel")) {
+            return new ParallelEngine(network, DataParser.iterateDataSets(data, null), params);
+        }
+        return new SparkEngine("benchmark", network, data, null, DataStorage.fromParams(params, null), params);
+    }
+
+    @Benchmark
+    public MultiLayerNetwork fitEpoch() {
+        trainingEngine.fitEpoch();
+        // Every iteration is another epoch on the same engine, one that cannot fit again would stop short here
+        if (trainingEngine.getExamples() != EXAMPLES) {
+            throw new IllegalStateException("Fitted " + trainingEngine.getExamples() + " of " + EXAMPLES + " examples");
+        }
+        return trainingEngine.getNetwork();
+    }
+
+    @Benchmark
+    public MultiLayerNetwork coldStart() throws IOException {
+        trainingEngine.close();
+        SparkEngine.stopSharedContext();
+        trainingEngine = createEngine();
+        trainingEngine.fitEpoch();
+        return trainingEngine.getNetwork();
+    }
+
+    @Benchmark
+    public MultiLayerNetwork warmStart() throws IOException {
+        trainingEngine.close();
+        trainingEngine = createEngine();
+        trainingEngine.fitEpoch();
+        return trainingEngine.getNetwork();
+    }
+}
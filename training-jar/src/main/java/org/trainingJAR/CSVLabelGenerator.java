@@ -3,7 +3,10 @@ package org.trainingJAR;
 import org.datavec.api.io.labels.PathLabelGenerator;
 import org.datavec.api.writable.NDArrayWritable;
 import org.datavec.api.writable.Writable;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -11,71 +14,256 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class CSVLabelGenerator implements PathLabelGenerator {
 
+    private static final Logger log = LoggerFactory.getLogger(CSVLabelGenerator.class);
+
     private boolean isNotRegression = true;
-    private Map<String, Object> labels = new HashMap<>();
-    private List<String> uniqueLabels;
+    private Map<String, Integer> labelIds = new HashMap<>();
+    private List<String> uniqueLabels = new ArrayList<>();
+    private int numTargets = 0;
+
+    // The entries of row i are at [offsets[i], offsets[i + 1]) of ids (classification) or values (regression)
+    private int numRows = 0;
+    private int[] offsets = new int[1024];
+    private int[] ids = new int[1024];
+    private double[] values = new double[1024];
+    private int numEntries = 0;
+
+    // Open addressing table from file name to row, avoiding a boxed map entry per file
+    private String[] rowKeys = new String[1 << 10];
+    private int[] rowValues = new int[1 << 10];
+    private int numKeys = 0;
+
+    /*
+    Label vectors are built once into a shared matrix. For classification every distinct set of labels gets one
+    row and one cached writable, and the table above maps file names directly to that row. Writables are only
+    read when the batch is assembled, so the same instance can be served to every file with the same labels.
+    For regression every file keeps a row of its own in targets instead, and its writable is made on each
+    lookup, as a cached view and writable per row would cost more heap than the values themselves.
+    */
+    private INDArray labelMatrix;
+    private NDArrayWritable[] labelWritables;
+    private float[] targets;
 
     public CSVLabelGenerator(boolean isNotRegression, String path, String csvFile) throws IOException {
+        this(isNotRegression, path, csvFile, new ArrayList<>());
+    }
+
+    // Classes in knownLabels keep their ids, new ones are numbered after them
+    public CSVLabelGenerator(boolean isNotRegression, String path, String csvFile, List<String> knownLabels)
+            throws IOException {
         this.isNotRegression = isNotRegression;
+        for (String label : knownLabels) {
+            labelIds.put(label, uniqueLabels.size());
+            uniqueLabels.add(label);
+        }
 
-        uniqueLabels = new ArrayList<String>();
-        BufferedReader reader = new BufferedReader(new FileReader(path + "/" + csvFile));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            String[] parts = line.split(",");
-            if (parts.length < 2) {
-                throw new IOException("Invalid line in CSV: " + line);
-            }
+        long start = System.nanoTime();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path + "/" + csvFile), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int end = line.indexOf(',');
+                if (end < 0) {
+                    throw new IOException("Invalid line in CSV: " + line);
+                }
+                String filename = line.substring(0, end);
 
-            if (isNotRegression) {
-                // Create a list of labels for each image.
-                List<String> imageLabels = new ArrayList<>();
-                for (int i = 1; i < parts.length; i++) {
-                    imageLabels.add(parts[i].trim());
-                    if (!uniqueLabels.contains(parts[i].trim())){
-                        uniqueLabels.add(parts[i].trim());
+                if (numRows + 1 == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[numRows] = numEntries;
+
+                int count = 0;
+                while (end >= 0) {
+                    int begin = end + 1;
+                    end = line.indexOf(',', begin);
+                    String label = line.substring(begin, end < 0 ? line.length() : end).trim();
+                    if (isNotRegression) {
+                        // Interns each label into an id the first time it is seen
+                        Integer id = labelIds.get(label);
+                        if (id == null) {
+                            id = uniqueLabels.size();
+                            labelIds.put(label, id);
+                            uniqueLabels.add(label);
+                        }
+                        addId(id);
                     }
+                    else {
+                        addValue(Double.parseDouble(label));
+                    }
+                    count++;
                 }
-                labels.put(parts[0], imageLabels);
-            }
-            else {
-                List<Double> labelValues = new ArrayList<>();
-                for (int i = 1; i < parts.length; i++) {
-                    labelValues.add(Double.parseDouble(parts[i].trim()));
+                if (!isNotRegression) {
+                    numTargets = Math.max(numTargets, count);
                 }
-                labels.put(parts[0], labelValues);
+
+                // A file listed more than once keeps its last row, as before
+                putRow(filename, numRows++);
             }
         }
+        offsets[numRows] = numEntries;
+        buildLabelMatrix();
+
+        log.info("Loaded {} label rows with {} {} in {} ms", numRows, getNumLabels(),
+                isNotRegression ? "classes" : "targets", (System.nanoTime() - start) / 1_000_000);
     }
 
-    public int getNumLabels() {
-        return uniqueLabels.size();
+    private void addId(int id) {
+        if (numEntries == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[numEntries++] = id;
     }
-    @Override
-    public Writable getLabelForPath(String path) {
-        String filename = new File(path).getName();
+
+    private void addValue(double value) {
+        if (numEntries == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[numEntries++] = value;
+    }
+
+    private void buildLabelMatrix() {
+        int numLabels = getNumLabels();
         if (isNotRegression) {
-            List<String> labelList = (List<String>) labels.get(filename);
-            double[] labelVector = new double[uniqueLabels.size()];
-            for (int i = 0; i < uniqueLabels.size(); i++) {
-                if (labelList.contains(uniqueLabels.get(i))) {
-                    labelVector[i] = 1;
+            Map<String, Integer> vectorIds = new HashMap<>();
+            int[] rowVectors = new int[numRows];
+            List<int[]> vectors = new ArrayList<>();
+            for (int row = 0; row < numRows; row++) {
+                int[] rowIds = Arrays.copyOfRange(ids, offsets[row], offsets[row + 1]);
+                Arrays.sort(rowIds);
+                String key = Arrays.toString(rowIds);
+                Integer vector = vectorIds.get(key);
+                if (vector == null) {
+                    vector = vectors.size();
+                    vectorIds.put(key, vector);
+                    vectors.add(rowIds);
+                }
+                rowVectors[row] = vector;
+            }
+
+            float[] matrix = new float[vectors.size() * numLabels];
+            for (int vector = 0; vector < vectors.size(); vector++) {
+                for (int id : vectors.get(vector)) {
+                    matrix[vector * numLabels + id] = 1;
+                }
+            }
+            labelMatrix = Nd4j.create(matrix, new long[]{vectors.size(), numLabels}, 'c');
+            labelWritables = new NDArrayWritable[vectors.size()];
+            for (int vector = 0; vector < vectors.size(); vector++) {
+                labelWritables[vector] = new NDArrayWritable(labelMatrix.getRow(vector, true));
+            }
+
+            // File names now lead straight to their label vector
+            for (int slot = 0; slot < rowKeys.length; slot++) {
+                if (rowKeys[slot] != null) {
+                    rowValues[slot] = rowVectors[rowValues[slot]];
                 }
             }
-            NDArrayWritable writable = new NDArrayWritable(Nd4j.create(labelVector, new int[]{1, getNumLabels()}));
-            return writable;
         }
         else {
-            List<Double> labelValues = (List<Double>) labels.get(filename);
-            double[] labelArray = labelValues.stream().mapToDouble(i -> i).toArray();
-            return new NDArrayWritable(Nd4j.create(labelArray, new int[]{1, getNumLabels()}));
+            targets = new float[numRows * numLabels];
+            for (int row = 0; row < numRows; row++) {
+                for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+                    targets[row * numLabels + i - offsets[row]] = (float) values[i];
+                }
+            }
+        }
+
+        offsets = null;
+        ids = null;
+        values = null;
+    }
+
+    private static int slot(int hash, int length) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (length - 1);
+    }
+
+    private int slot(String key, String[] keys) {
+        int slot = slot(key.hashCode(), keys.length);
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        return slot;
+    }
+
+    private void putRow(String key, int row) {
+        if ((numKeys + 1) * 2 > rowKeys.length) {
+            String[] oldKeys = rowKeys;
+            int[] oldValues = rowValues;
+            rowKeys = new String[oldKeys.length * 2];
+            rowValues = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = slot(oldKeys[i], rowKeys);
+                    rowKeys[slot] = oldKeys[i];
+                    rowValues[slot] = oldValues[i];
+                }
+            }
+        }
+
+        int slot = slot(key, rowKeys);
+        if (rowKeys[slot] == null) {
+            rowKeys[slot] = key;
+            numKeys++;
+        }
+        rowValues[slot] = row;
+    }
+
+    // Looks up the file name at the end of the path in place, hashing it the same way as String.hashCode
+    private int getRow(String path) {
+        int begin = Math.max(path.lastIndexOf('/'), path.lastIndexOf(File.separatorChar)) + 1;
+        int length = path.length() - begin;
+        int hash = 0;
+        for (int i = begin; i < path.length(); i++) {
+            hash = 31 * hash + path.charAt(i);
+        }
+
+        int slot = slot(hash, rowKeys.length);
+        while (rowKeys[slot] != null) {
+            String key = rowKeys[slot];
+            if (key.length() == length && path.regionMatches(begin, key, 0, length)) {
+                return rowValues[slot];
+            }
+            slot = (slot + 1) & (rowKeys.length - 1);
+        }
+        throw new IllegalArgumentException("No labels found for " + path);
+    }
+
+    public int getNumLabels() {
+        return isNotRegression ? uniqueLabels.size() : numTargets;
+    }
+
+    public List<String> getLabelNames() {
+        return new ArrayList<>(uniqueLabels);
+    }
+
+    public float[] getLabelVector(String path) {
+        int row = getRow(path);
+        if (isNotRegression) {
+            return labelMatrix.getRow(row, true).toFloatVector();
+        }
+        return getTargets(row);
+    }
+
+    private float[] getTargets(int row) {
+        return Arrays.copyOfRange(targets, row * numTargets, (row + 1) * numTargets);
+    }
+
+    @Override
+    public Writable getLabelForPath(String path) {
+        int row = getRow(path);
+        if (isNotRegression) {
+            return labelWritables[row];
         }
+        // Copying the few values of the row is cheaper than making a view of a shared matrix
+        return new NDArrayWritable(Nd4j.create(getTargets(row), new long[]{1, numTargets}, 'c'));
     }
 
     @Override
@@ -0,0 +1,152 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+Writes a checkpoint every few epochs or minutes while training goes on. The parameters and updater state
+are copied on the training thread, which only takes a device copy, and the copy is serialized and uploaded
+on a background thread. Only the newest checkpoints are kept. A checkpoint is a regular model zip, so
+training resumes from it by passing its key as the network to continue from. Epochs are counted over all the
+runs of a model, a resumed run keeps the checkpoints of the earlier ones and prunes them along with its own.
+*/
+public class Checkpointer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Checkpointer.class);
+
+    private final ModelStore modelStore;
+    private final DataNormalization normalizer;
+    private final String prefix;
+    private final int everyEpochs;
+    private final long everyMillis;
+    private final int keep;
+
+    private final ExecutorService uploader;
+    private final Deque<String[]> checkpoints = new ArrayDeque<>();
+    private Future<?> pending;
+    private long lastCheckpoint = System.currentTimeMillis();
+    private int lastEpoch;
+
+    // startEpoch is the number of epochs the network was trained for before this run
+    public Checkpointer(ModelStore modelStore, DataNormalization normalizer, String prefix,
+                        int everyEpochs, long everyMillis, int keep, int startEpoch) {
+        this.modelStore = modelStore;
+        this.normalizer = normalizer;
+        this.prefix = prefix;
+        this.everyEpochs = everyEpochs;
+        this.everyMillis = everyMillis;
+        this.keep = Math.max(1, keep);
+        this.lastEpoch = startEpoch;
+        if (everyEpochs > 0 || everyMillis > 0) {
+            findEarlierCheckpoints(startEpoch);
+        }
+        this.uploader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-uploader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static Checkpointer fromParams(Map<String, Object> params, ModelStore modelStore,
+                                          DataNormalization normalizer, String modelKey, int startEpoch) {
+        String name = modelKey.endsWith(".zip") ? modelKey.substring(0, modelKey.length() - 4) : modelKey;
+        return new Checkpointer(modelStore, normalizer, name + "-checkpoints/",
+                JsonParser.getCheckpointEpochs(params), (long) (JsonParser.getCheckpointMinutes(params) * 60_000),
+                JsonParser.getCheckpointsKept(params), startEpoch);
+    }
+
+    // The checkpoints of earlier runs count towards keep, those past startEpoch are from a run this one replaces
+    private void findEarlierCheckpoints(int startEpoch) {
+        try {
+            for (String[] checkpoint : modelStore.list(prefix)) {
+                String name = checkpoint[0].substring(prefix.length());
+                if (name.matches("epoch-\\d+\\.zip") && Integer.parseInt(name.replaceAll("\\D", "")) <= startEpoch) {
+                    checkpoints.addLast(checkpoint);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not list the earlier checkpoints under {}, they are not pruned", prefix, e);
+        }
+    }
+
+    private boolean isDue(int epoch) {
+        return everyEpochs > 0 && epoch - lastEpoch >= everyEpochs
+                || everyMillis > 0 && System.currentTimeMillis() - lastCheckpoint >= everyMillis;
+    }
+
+    // Called after every epoch with the number of epochs completed so far, including those of earlier runs
+    public void onEpochEnd(MultiLayerNetwork network, int epoch) {
+        if (!isDue(epoch)) {
+            return;
+        }
+        // Queuing snapshots behind a slow upload would only pile up copies of the parameters
+        if (pending != null && !pending.isDone()) {
+            log.warn("Skipping the checkpoint for epoch {}, the previous one is still uploading", epoch);
+            return;
+        }
+        lastEpoch = epoch;
+        lastCheckpoint = System.currentTimeMillis();
+
+        long start = System.nanoTime();
+        MultiLayerConfiguration conf = network.getLayerWiseConfigurations().clone();
+        INDArray params = network.params().dup();
+        INDArray updaterState = network.getUpdater().getStateViewArray();
+        INDArray updaterCopy = updaterState != null ? updaterState.dup() : null;
+        log.info("Took a snapshot for the checkpoint of epoch {} in {} ms", epoch, (System.nanoTime() - start) / 1_000_000);
+
+        String key = String.format("%sepoch-%05d.zip", prefix, epoch);
+        pending = uploader.submit(() -> {
+            try {
+                MultiLayerNetwork copy = new MultiLayerNetwork(conf);
+                copy.init(params, false);
+                if (updaterCopy != null) {
+                    copy.getUpdater().getStateViewArray().assign(updaterCopy);
+                }
+                checkpoints.addLast(new String[]{key, modelStore.save(copy, normalizer, key, true)});
+                prune();
+            } catch (Exception e) {
+                log.warn("Could not write the checkpoint {}", key, e);
+            }
+        });
+    }
+
+    private void prune() {
+        while (checkpoints.size() > keep) {
+            String[] oldest = checkpoints.removeFirst();
+            try {
+                modelStore.delete(oldest[0], oldest[1]);
+            } catch (Exception e) {
+                log.warn("Could not delete the old checkpoint {}", oldest[0], e);
+            }
+        }
+    }
+
+    // Waits for the checkpoint in flight so that nothing is left half uploaded
+    @Override
+    public void close() {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (ExecutionException e) {
+                log.warn("The last checkpoint failed", e.getCause());
+            } catch (InterruptedException e) {
+                // The upload goes on in the background, the caller still has its own resources to close
+                log.warn("Interrupted while waiting for the last checkpoint");
+                Thread.currentThread().interrupt();
+            }
+        }
+        uploader.shutdown();
+    }
+}
@@ -0,0 +1,380 @@
+package org.trainingJAR;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+/*
+What has already been decoded and labeled from a data directory, so that a job on the same data again only
+decodes and labels the files that are new or changed. The download is already skipped for those by the ETags
+of S3Fetcher.syncPrefix, and the same ETags tell which files changed here.
+
+Every file has an entry with its tag, the chunk and record its pixels are in and its label ids, or its values
+for regression. The chunks are TensorCaches written without labels, one more per run that decodes anything.
+Labels are kept out of the chunks so that relabeling a file or a new class never decodes anything again, the
+ids of the classes seen before stay the same. The label file is only read when its own tag changes.
+*/
+public class DataManifest {
+
+    private static final Logger log = LoggerFactory.getLogger(DataManifest.class);
+
+    private static final int VERSION = 1;
+
+    // Written as JSON, see load and save
+    public static class Contents {
+        public int version = VERSION;
+        public boolean isNotRegression;
+        public String labelTag;
+        public List<String> labels = new ArrayList<>();
+        public int numTargets;
+        public int nextChunk;
+        public Map<String, Entry> files = new HashMap<>();
+    }
+
+    public static class Entry {
+        public String tag;
+        public int chunk;
+        public int record;
+        public int[] ids;
+        public float[] values;
+    }
+
+    private final File directory;
+    private final Contents contents;
+    private final Map<Integer, TensorCache> chunks = new HashMap<>();
+
+    private DataManifest(File directory, Contents contents) {
+        this.directory = directory;
+        this.contents = contents;
+    }
+
+    public static File getDirectory(String cachePath, int[] dataShape) {
+        return new File(cachePath, "manifest-" + dataShape[0] + "x" + dataShape[1] + "x" + dataShape[2]);
+    }
+
+    /*
+    Brings the manifest of the directory up to date with files and the label file, decoding what is new or changed
+    into a new chunk. tags are the ETags of the synced files by name, files without one are tagged by size and
+    modification time.
+    */
+    public static DataManifest update(File directory, String dataPath, String labelFile, List<URI> files, int[] dataShape,
+                                      boolean isNotRegression, Map<String, String> tags, int batchSize, int decodeThreads)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create manifest directory: " + directory);
+        }
+        Contents contents = load(new File(directory, "manifest.json"));
+        if (contents == null || contents.isNotRegression != isNotRegression) {
+            contents = new Contents();
+            contents.isNotRegression = isNotRegression;
+        }
+        DataManifest manifest = new DataManifest(directory, contents);
+
+        String labelTag = DataParser.getFileTag(new File(dataPath, labelFile), tags);
+        CSVLabelGenerator labelGenerator = null;
+        if (!labelTag.equals(contents.labelTag)) {
+            labelGenerator = new CSVLabelGenerator(isNotRegression, dataPath, labelFile, contents.labels);
+        }
+
+        List<URI> changed = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        int relabeled = 0;
+        for (URI uri : files) {
+            File file = new File(uri);
+            names.add(file.getName());
+            Entry entry = contents.files.get(file.getName());
+            if (entry == null || !entry.tag.equals(DataParser.getFileTag(file, tags))) {
+                changed.add(uri);
+            }
+            else if (labelGenerator != null && manifest.setLabels(entry, labelGenerator, file.getName())) {
+                relabeled++;
+            }
+        }
+        int removed = contents.files.size();
+        contents.files.keySet().retainAll(names);
+        removed -= contents.files.size();
+
+        if (!changed.isEmpty()) {
+            // New files may be listed in a label file that is otherwise unchanged
+            if (labelGenerator == null) {
+                labelGenerator = new CSVLabelGenerator(isNotRegression, dataPath, labelFile, contents.labels);
+            }
+            manifest.decode(changed, tags, labelGenerator, dataShape, batchSize, decodeThreads);
+        }
+        if (labelGenerator != null) {
+            contents.labelTag = labelTag;
+            contents.labels = labelGenerator.getLabelNames();
+            contents.numTargets = isNotRegression ? 0 : labelGenerator.getNumLabels();
+        }
+        manifest.deleteUnusedChunks();
+        save(contents, new File(directory, "manifest.json"));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("files", contents.files.size());
+        report.put("reused", contents.files.size() - changed.size());
+        report.put("decoded", changed.size());
+        report.put("relabeled", relabeled);
+        report.put("removed", removed);
+        report.put("labelsRead", labelGenerator != null);
+        report.put("seconds", (System.nanoTime() - start) / 1e9);
+        TrainingMetrics.get().recordDataManifest(report);
+        log.info("Updated data manifest {}: {}", directory, report);
+        return manifest;
+    }
+
+    private void decode(List<URI> changed, Map<String, String> tags, CSVLabelGenerator labelGenerator, int[] dataShape,
+                        int batchSize, int decodeThreads) throws IOException, InterruptedException {
+        int chunk = contents.nextChunk++;
+        File chunkFile = chunkFile(chunk);
+        DataSetIterator decoder = DataParser.createDecoder(dataShape, changed, labelGenerator, batchSize, decodeThreads, null);
+        TensorCache.write(decoder, chunkFile, false);
+        int records = chunk(chunk).numExamples();
+        if (records != changed.size()) {
+            throw new IOException("Decoded " + records + " of " + changed.size() + " files into " + chunkFile);
+        }
+
+        for (int i = 0; i < changed.size(); i++) {
+            File file = new File(changed.get(i));
+            Entry entry = new Entry();
+            entry.tag = DataParser.getFileTag(file, tags);
+            entry.chunk = chunk;
+            entry.record = i;
+            setLabels(entry, labelGenerator, file.getName());
+            contents.files.put(file.getName(), entry);
+        }
+    }
+
+    // Returns whether the labels of the entry changed
+    private boolean setLabels(Entry entry, CSVLabelGenerator labelGenerator, String name) {
+        float[] vector = labelGenerator.getLabelVector(name);
+        if (!contents.isNotRegression) {
+            boolean changed = entry.values == null || !Arrays.equals(entry.values, vector);
+            entry.values = vector;
+            return changed;
+        }
+
+        int count = 0;
+        for (float value : vector) {
+            if (value != 0) {
+                count++;
+            }
+        }
+        int[] ids = new int[count];
+        count = 0;
+        for (int id = 0; id < vector.length; id++) {
+            if (vector[id] != 0) {
+                ids[count++] = id;
+            }
+        }
+        boolean changed = entry.ids == null || !Arrays.equals(entry.ids, ids);
+        entry.ids = ids;
+        return changed;
+    }
+
+    private void deleteUnusedChunks() throws IOException {
+        Set<Integer> used = new HashSet<>();
+        for (Entry entry : contents.files.values()) {
+            used.add(entry.chunk);
+        }
+        for (int chunk = 0; chunk < contents.nextChunk; chunk++) {
+            if (!used.contains(chunk)) {
+                chunks.remove(chunk);
+                Files.deleteIfExists(chunkFile(chunk).toPath());
+            }
+        }
+    }
+
+    private File chunkFile(int chunk) {
+        return new File(directory, "chunk-" + chunk + ".bin");
+    }
+
+    private TensorCache chunk(int chunk) throws IOException {
+        TensorCache cache = chunks.get(chunk);
+        if (cache == null) {
+            cache = new TensorCache(chunkFile(chunk));
+            chunks.put(chunk, cache);
+        }
+        return cache;
+    }
+
+    private static Contents load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Contents contents = new ObjectMapper().readValue(file, Contents.class);
+            return contents.version == VERSION ? contents : null;
+        } catch (IOException e) {
+            log.warn("Could not read {}, every file will be decoded again", file, e);
+            return null;
+        }
+    }
+
+    // Written under a temporary name first, like the chunks, so an interrupted run keeps the previous manifest
+    private static void save(Contents contents, File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        new ObjectMapper().writeValue(tmpFile, contents);
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public int getNumLabels() {
+        return contents.isNotRegression ? contents.labels.size() : contents.numTargets;
+    }
+
+    /*
+    Serves the unnormalized examples of files in their order, or shuffled the same way DataParser.createDecoder
+    shuffles them for the same seed.
+    */
+    public DataSetIterator iterator(List<URI> files, int batchSize, Long shuffleSeed) throws IOException {
+        if (shuffleSeed != null) {
+            files = new ArrayList<>(files);
+            Collections.shuffle(files, new Random(shuffleSeed));
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (URI uri : files) {
+            Entry entry = contents.files.get(new File(uri).getName());
+            if (entry == null) {
+                throw new IOException("File is not in the data manifest: " + uri);
+            }
+            chunk(entry.chunk);
+            entries.add(entry);
+        }
+        return new ManifestDataSetIterator(entries, batchSize);
+    }
+
+    private class ManifestDataSetIterator implements DataSetIterator {
+
+        private final List<Entry> entries;
+        private final int batchSize;
+        private final int numLabels = getNumLabels();
+        private int cursor = 0;
+        private DataSetPreProcessor preProcessor;
+
+        ManifestDataSetIterator(List<Entry> entries, int batchSize) {
+            this.entries = entries;
+            this.batchSize = batchSize;
+        }
+
+        private long[] featureShape() {
+            return chunks.get(entries.get(0).chunk).featureShape();
+        }
+
+        @Override
+        public DataSet next(int num) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long[] featureShape = featureShape();
+            int featureSize = inputColumns();
+            int count = Math.min(num, entries.size() - cursor);
+            float[] features = new float[count * featureSize];
+            float[] labels = new float[count * numLabels];
+
+            for (int i = 0; i < count; i++) {
+                Entry entry = entries.get(cursor + i);
+                chunks.get(entry.chunk).readFeatures(entry.record, features, i * featureSize);
+                if (entry.ids != null) {
+                    for (int id : entry.ids) {
+                        labels[i * numLabels + id] = 1;
+                    }
+                }
+                else {
+                    System.arraycopy(entry.values, 0, labels, i * numLabels, entry.values.length);
+                }
+            }
+            cursor += count;
+
+            long[] shape = new long[featureShape.length + 1];
+            shape[0] = count;
+            System.arraycopy(featureShape, 0, shape, 1, featureShape.length);
+            DataSet dataSet = new DataSet(Nd4j.create(features, shape, 'c'),
+                    Nd4j.create(labels, new long[]{count, numLabels}, 'c'));
+            if (preProcessor != null) {
+                preProcessor.preProcess(dataSet);
+            }
+
+            return dataSet;
+        }
+
+        @Override
+        public int inputColumns() {
+            int size = 1;
+            for (long dim : featureShape()) {
+                size *= dim;
+            }
+            return size;
+        }
+
+        @Override
+        public int totalOutcomes() {
+            return numLabels;
+        }
+
+        @Override
+        public boolean resetSupported() {
+            return true;
+        }
+
+        @Override
+        public boolean asyncSupported() {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            cursor = 0;
+        }
+
+        @Override
+        public int batch() {
+            return batchSize;
+        }
+
+        @Override
+        public void setPreProcessor(DataSetPreProcessor preProcessor) {
+            this.preProcessor = preProcessor;
+        }
+
+        @Override
+        public DataSetPreProcessor getPreProcessor() {
+            return preProcessor;
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return new ArrayList<>(contents.labels);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < entries.size();
+        }
+
+        @Override
+        public DataSet next() {
+            return next(batchSize);
+        }
+    }
+}
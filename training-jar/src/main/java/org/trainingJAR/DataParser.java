@@ -5,30 +5,275 @@ import org.datavec.api.split.CollectionInputSplit;
 import org.datavec.api.split.FileSplit;
 import org.datavec.image.recordreader.ImageRecordReader;
 import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.AsyncDataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.dataset.api.preprocessor.serializer.NormalizerSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.stream.Stream;
 
 public class DataParser {
 
-    public static DataSetIterator createDataSetIterator (RecordReader recordReader, int numLabels)
+    private static final Logger log = LoggerFactory.getLogger(DataParser.class);
+
+    public static DataSetIterator createDataSetIterator(DataSetIterator decoder, int prefetchBuffer,
+                                                        DataNormalization normalizer) {
+        DataSetIterator iterator = decoder;
+
+        iterator.setPreProcessor(normalizer);
+
+        // Decode and normalize the next batches on a background thread while the current one is consumed
+        // The parallel decoder already works ahead and says so with asyncSupported
+        if (prefetchBuffer > 0 && iterator.asyncSupported()) {
+            iterator = new AsyncDataSetIterator(iterator, prefetchBuffer, false);
+        }
+
+        return iterator;
+    }
+
+    /*
+    Decodes the images in batches, on decodeThreads threads when there is more than one. With a shuffle
+    seed the files are shuffled first, the batches come out in the same order for the same seed either way.
+    */
+    public static DataSetIterator createDecoder(int[] dataShape, List<URI> files, CSVLabelGenerator labelGenerator,
+                                                int batchSize, int decodeThreads, Long shuffleSeed)
             throws IOException, InterruptedException {
-        DataSetIterator iterator = null;
-        iterator = new RecordReaderDataSetIterator(recordReader, 1, 1, 1, true);
+        if (shuffleSeed != null) {
+            files = new ArrayList<>(files);
+            Collections.shuffle(files, new Random(shuffleSeed));
+        }
+        if (decodeThreads > 1) {
+            return new ParallelImageIterator(dataShape, files, labelGenerator, batchSize, decodeThreads);
+        }
+        return recordIterator(generateRecordReader(dataShape, files, labelGenerator), batchSize);
+    }
+
+    /*
+    The label generator returns the whole label vector as a single NDArrayWritable in column 1. In regression
+    mode the fourth argument is the last label column rather than the number of classes, so it stays 1.
+    */
+    static DataSetIterator recordIterator(RecordReader recordReader, int batchSize) {
+        return new RecordReaderDataSetIterator(recordReader, batchSize, 1, 1, true);
+    }
 
-        DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
-        scaler.fit(iterator);
-        iterator.setPreProcessor(scaler);
+    /*
+    Serves the examples from the decoded-tensor cache, decoding the images into it first if this
+    combination of files, shape and labels has not been cached yet.
+    */
+    public static DataSetIterator createCachedDataSetIterator(File cacheFile, DataSetIterator decoder, int batchSize,
+                                                              int prefetchBuffer, DataNormalization normalizer)
+            throws IOException {
+        if (!cacheFile.exists()) {
+            if (prefetchBuffer > 0 && decoder.asyncSupported()) {
+                decoder = new AsyncDataSetIterator(decoder, prefetchBuffer, false);
+            }
+            TensorCache.write(decoder, cacheFile);
+        }
+
+        DataSetIterator iterator = new TensorCache(cacheFile).iterator(batchSize);
+        iterator.setPreProcessor(normalizer);
+        if (prefetchBuffer > 0) {
+            iterator = new AsyncDataSetIterator(iterator, prefetchBuffer, false);
+        }
 
         return iterator;
     }
 
+    // Generated files are kept beside the data directory so that readFiles never picks them up as data
+    public static String getCacheDirectory(String dataPath) throws IOException {
+        File cacheDir = new File(new File(dataPath).getAbsolutePath() + "_cache");
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create cache directory: " + cacheDir);
+        }
+
+        return cacheDir.getPath();
+    }
+
+    /*
+    Reloads the normalizer saved for this exact set of files, or creates and saves a new one.
+    ImagePreProcessingScaler scales from the fixed pixel range, so it needs no pass over the data to fit.
+    */
+    public static DataNormalization loadOrCreateNormalizer(String cachePath, String dataHash) throws IOException {
+        File normalizerFile = new File(cachePath, "normalizer-" + dataHash + ".bin");
+        if (normalizerFile.exists()) {
+            try {
+                return NormalizerSerializer.getDefault().restore(normalizerFile);
+            } catch (Exception e) {
+                log.warn("Could not restore normalizer from {}, creating a new one", normalizerFile, e);
+            }
+        }
+
+        DataNormalization normalizer = new ImagePreProcessingScaler(0, 1);
+        NormalizerSerializer.getDefault().write(normalizer, normalizerFile);
+        return normalizer;
+    }
+
+    /*
+    Identifies a set of data files by name and tag, see getFileTag. Sizes alone miss a file that was
+    replaced by another one of the same size.
+    */
+    public static String computeDataHash(List<URI> files, Map<String, String> tags) {
+        List<String> entries = new ArrayList<>();
+        for (URI uri : files) {
+            File file = new File(uri);
+            entries.add(file.getName() + ":" + getFileTag(file, tags));
+        }
+        Collections.sort(entries);
+        return hash(entries);
+    }
+
+    /*
+    The ETag of a file synced from S3, which changes with its contents, see S3Fetcher.getSyncedETags. Other files
+    are tagged by size and modification time, those only change when the file is written again.
+    */
+    public static String getFileTag(File file, Map<String, String> tags) {
+        String tag = tags.get(file.getName());
+        return tag != null ? tag : file.length() + ":" + file.lastModified();
+    }
+
+    static String hash(List<String> entries) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String entry : entries) {
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Keeps the batches in the compact form of the storage, the full precision batch is dropped right after
+    public static List<DataSet> collectDataSets(DataSetIterator iterator, DataStorage storage) {
+        List<DataSet> data = new ArrayList<>();
+        long start = System.nanoTime();
+        long examples = 0;
+        long featureBytes = 0;
+        long floatFeatureBytes = 0;
+        while (iterator.hasNext()) {
+            DataSet dataSet = iterator.next();
+            examples += dataSet.numExamples();
+            floatFeatureBytes += dataSet.getFeatures().length() * Float.BYTES;
+            dataSet = storage.compact(dataSet);
+            featureBytes += dataSet.getFeatures().length() * dataSet.getFeatures().dataType().width();
+            data.add(dataSet);
+        }
+        logThroughput(iterator, data.size(), examples, System.nanoTime() - start);
+
+        TrainingMetrics.get().recordDataMemory(storage.getStorage(), featureBytes, floatFeatureBytes);
+        log.info("Features take {} MB stored as {}, {} MB as float", String.format("%.1f", featureBytes / 1e6),
+                storage.getStorage(), String.format("%.1f", floatFeatureBytes / 1e6));
+        return data;
+    }
+
+    /*
+    Writes every minibatch of the iterator to its own serialized DataSet file so that the executors
+    can load them directly (SparkDl4jMultiLayer.fitPaths) instead of the driver holding the whole dataset.
+    */
+    public static List<String> exportDataSets(DataSetIterator iterator, String directory) throws IOException {
+        File exportDir = new File(directory);
+        if (!exportDir.exists() && !exportDir.mkdirs()) {
+            throw new IOException("Could not create export directory: " + directory);
+        }
+
+        List<String> paths = new ArrayList<>();
+        long start = System.nanoTime();
+        long examples = 0;
+        int count = 0;
+        while (iterator.hasNext()) {
+            DataSet dataSet = iterator.next();
+            examples += dataSet.numExamples();
+            File file = new File(exportDir, "dataset_" + count++ + ".bin");
+            dataSet.save(file);
+            paths.add(file.toURI().toString());
+        }
+        logThroughput(iterator, count, examples, System.nanoTime() - start);
+
+        return paths;
+    }
+
+    private static void logThroughput(DataSetIterator iterator, int batches, long examples, long nanos) {
+        TrainingMetrics.get().recordDataLoad(examples, batches, nanos);
+        double seconds = nanos / 1e9;
+        log.info("Loaded {} examples in {} batches (batch size {}) in {} s: {} examples/s, {} batches/s",
+                examples, batches, iterator.batch(), String.format("%.2f", seconds),
+                String.format("%.1f", examples / seconds), String.format("%.1f", batches / seconds));
+    }
+
+    // Moves a shuffled fraction of the items into a held-out list, the same items for the same seed
+    public static <T> List<T> splitValidation(List<T> items, double fraction, long seed) {
+        List<T> shuffled = new ArrayList<>(items);
+        Collections.shuffle(shuffled, new Random(seed));
+        int validationSize = (int) Math.round(shuffled.size() * fraction);
+
+        List<T> validation = new ArrayList<>(shuffled.subList(0, validationSize));
+        items.clear();
+        items.addAll(shuffled.subList(validationSize, shuffled.size()));
+        return validation;
+    }
+
+    // Average score per example over DataSets held in memory or exported to the given paths
+    public static double score(MultiLayerNetwork network, List<DataSet> data, List<String> paths) {
+        return score(network, data, paths, null);
+    }
+
+    public static double score(MultiLayerNetwork network, List<DataSet> data, List<String> paths, DataStorage storage) {
+        double total = 0;
+        long examples = 0;
+        int count = data != null ? data.size() : paths.size();
+        for (int i = 0; i < count; i++) {
+            DataSet dataSet = data != null ? data.get(i) : loadDataSet(paths.get(i));
+            if (storage != null) {
+                dataSet = storage.expand(dataSet);
+            }
+            total += network.score(dataSet) * dataSet.numExamples();
+            examples += dataSet.numExamples();
+        }
+
+        return examples == 0 ? Double.NaN : total / examples;
+    }
+
+    // Iterates over DataSets held in memory or exported to the given paths, loading exported ones as they are needed
+    public static DataSetIterator iterateDataSets(List<DataSet> data, List<String> paths) {
+        return iterateDataSets(data, paths, null);
+    }
+
+    // Batches kept in a compact storage are expanded one at a time as they are served
+    public static DataSetIterator iterateDataSets(List<DataSet> data, List<String> paths, DataStorage storage) {
+        if (data != null && storage == null) {
+            return new ExistingDataSetIterator(data);
+        }
+        return new ExistingDataSetIterator(() -> {
+            Stream<DataSet> batches = data != null ? data.stream() : paths.stream().map(DataParser::loadDataSet);
+            return (storage != null ? batches.map(storage::expand) : batches).iterator();
+        });
+    }
+
+    public static DataSet loadDataSet(String path) {
+        DataSet dataSet = new DataSet();
+        dataSet.load(new File(URI.create(path)));
+        return dataSet;
+    }
+
     public static List<URI> readFiles(String path, String ignore) {
         FileSplit allFiles = new FileSplit(new File(path));
         List<URI> filteredURIs = new ArrayList<>();
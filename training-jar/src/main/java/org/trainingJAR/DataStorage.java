@@ -0,0 +1,72 @@
+package org.trainingJAR;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/*
+How the collected batches are kept in memory. "uint8" keeps the decoded pixels as one byte each and normalizes
+them when the batch is handed to the network, "fp16" keeps the normalized features as half floats. On the way
+out features and labels are cast to the data type of the network, the stored batches themselves never change.
+Serializable so that Spark executors can expand the batches of their partitions.
+*/
+public class DataStorage implements Serializable {
+
+    private final String storage;
+    private final DataNormalization normalizer;
+    private final DataType dataType;
+
+    public DataStorage(String storage, DataNormalization normalizer, DataType dataType) {
+        this.storage = storage;
+        this.normalizer = normalizer;
+        this.dataType = dataType;
+    }
+
+    public static DataStorage fromParams(Map<String, Object> params, DataNormalization normalizer) {
+        return new DataStorage(JsonParser.getDataStorage(params), normalizer, JsonParser.getDataType(params));
+    }
+
+    public String getStorage() {
+        return storage;
+    }
+
+    // The normalizer of the iterator the batches are collected from, uint8 needs the pixels as decoded
+    public DataNormalization getIteratorNormalizer() {
+        return storage.equals("uint8") ? null : normalizer;
+    }
+
+    public DataSet compact(DataSet dataSet) {
+        switch (storage) {
+            case "uint8":
+                return withFeatures(dataSet, dataSet.getFeatures().castTo(DataType.UINT8), dataSet.getLabels());
+            case "fp16":
+                return withFeatures(dataSet, dataSet.getFeatures().castTo(DataType.FLOAT16), dataSet.getLabels());
+            default:
+                return dataSet;
+        }
+    }
+
+    // castTo returns the same array when the type already matches, so only uint8 features are copied before normalizing
+    public DataSet expand(DataSet dataSet) {
+        INDArray features = dataSet.getFeatures();
+        INDArray labels = dataSet.getLabels();
+        if (features.dataType() == dataType && labels.dataType() == dataType) {
+            return dataSet;
+        }
+
+        boolean normalize = features.dataType() == DataType.UINT8 && normalizer != null;
+        features = features.castTo(dataType);
+        if (normalize) {
+            normalizer.transform(features);
+        }
+        return withFeatures(dataSet, features, labels.castTo(dataType));
+    }
+
+    private static DataSet withFeatures(DataSet dataSet, INDArray features, INDArray labels) {
+        return new DataSet(features, labels, dataSet.getFeaturesMaskArray(), dataSet.getLabelsMaskArray());
+    }
+}
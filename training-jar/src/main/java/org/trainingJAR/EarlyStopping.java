@@ -0,0 +1,70 @@
+package org.trainingJAR;
+
+import java.util.Map;
+
+/*
+Decides when training should end on its own: when the score has not improved by at least minImprovement
+for patience epochs, or when the epoch or wall-clock budget is used up. A value of 0 disables a limit.
+Lower scores are better.
+*/
+public class EarlyStopping {
+
+    private final int patience;
+    private final double minImprovement;
+    private final int maxEpochs;
+    private final long maxMillis;
+    private final long start = System.currentTimeMillis();
+
+    private double bestScore = Double.POSITIVE_INFINITY;
+    private int bestEpoch = -1;
+    private int epochs = 0;
+    private String reason;
+
+    public EarlyStopping(int patience, double minImprovement, int maxEpochs, long maxMillis) {
+        this.patience = patience;
+        this.minImprovement = minImprovement;
+        this.maxEpochs = maxEpochs;
+        this.maxMillis = maxMillis;
+    }
+
+    public static EarlyStopping fromParams(Map<String, Object> params) {
+        return new EarlyStopping(JsonParser.getPatience(params), JsonParser.getMinImprovement(params),
+                JsonParser.getMaxEpochs(params), (long) (JsonParser.getMaxTrainingMinutes(params) * 60_000));
+    }
+
+    // Records the score of the epoch that just finished and returns whether it is the best one so far
+    public boolean update(double score) {
+        epochs++;
+        if (!Double.isNaN(score) && score < bestScore - minImprovement) {
+            bestScore = score;
+            bestEpoch = epochs - 1;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean shouldStop() {
+        if (maxEpochs > 0 && epochs >= maxEpochs) {
+            reason = "reached the maximum of " + maxEpochs + " epochs";
+        }
+        else if (maxMillis > 0 && System.currentTimeMillis() - start >= maxMillis) {
+            reason = "reached the maximum training time of " + maxMillis / 60_000 + " minutes";
+        }
+        else if (patience > 0 && epochs - 1 - bestEpoch >= patience) {
+            reason = "no improvement of at least " + minImprovement + " for " + patience + " epochs";
+        }
+        return reason != null;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public double getBestScore() {
+        return bestScore;
+    }
+
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+}
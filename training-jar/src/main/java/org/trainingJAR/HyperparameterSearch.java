@@ -0,0 +1,296 @@
+package org.trainingJAR;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/*
+Random search with successive halving. Every trial samples the search space into a copy of the base network
+map, and all trials train concurrently on the same decoded batches. After each rung only the best 1/reduction
+of the trials go on, with reduction times as many epochs, so most of the compute goes to the promising ones.
+
+The search space maps a path in the network map, such as "updater" or "layer0.dropoutRate", to either a list
+of values to choose from or a range {"min": .., "max": .., "log": true, "integer": false}.
+*/
+public class HyperparameterSearch {
+
+    private static final Logger log = LoggerFactory.getLogger(HyperparameterSearch.class);
+
+    private final Map<String, Object> baseParams;
+    private final Map<String, Object> space;
+    private final int trials;
+    private final int reduction;
+    private final int minEpochs;
+    private final int maxEpochs;
+    private final int parallelTrials;
+    private final SplittableRandom random;
+
+    public HyperparameterSearch(Map<String, Object> baseParams, Map<String, Object> space, int trials, int reduction,
+                                int minEpochs, int maxEpochs, int parallelTrials, long seed) {
+        validate(space, trials);
+        this.baseParams = baseParams;
+        this.space = space;
+        this.trials = trials;
+        this.reduction = Math.max(2, reduction);
+        this.minEpochs = Math.max(1, minEpochs);
+        this.maxEpochs = Math.max(this.minEpochs, maxEpochs);
+        this.parallelTrials = Math.max(1, Math.min(trials, parallelTrials));
+        this.random = new SplittableRandom(seed);
+    }
+
+    // The search settings come with the job: {"space": {..}, "trials": 27, "reduction": 3, "minEpochs": 1, ...}
+    @SuppressWarnings("unchecked")
+    public static HyperparameterSearch fromSpec(Map<String, Object> params, Map<String, Object> spec) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new HyperparameterSearch(params, (Map<String, Object>) spec.get("space"),
+                getInt(spec, "trials", 27), getInt(spec, "reduction", 3), getInt(spec, "minEpochs", 1),
+                getInt(spec, "maxEpochs", 27), getInt(spec, "parallelTrials", Math.max(1, cores / 2)),
+                getInt(spec, "seed", 42));
+    }
+
+    // Rejects a spec before a job is started for it
+    public static void validateSpec(Map<String, Object> spec) {
+        Object space = spec.get("space");
+        if (!(space instanceof Map)) {
+            throw new IllegalArgumentException("search.space is required for a search");
+        }
+        validate((Map<?, ?>) space, getInt(spec, "trials", 27));
+    }
+
+    private static void validate(Map<?, ?> space, int trials) {
+        if (trials <= 0) {
+            throw new IllegalArgumentException("The search needs at least one trial.");
+        }
+        if (space == null || space.isEmpty()) {
+            throw new IllegalArgumentException("The search space is empty.");
+        }
+        for (Map.Entry<?, ?> entry : space.entrySet()) {
+            Object choices = entry.getValue();
+            if (choices instanceof List && !((List<?>) choices).isEmpty()) {
+                continue;
+            }
+            if (!(choices instanceof Map)) {
+                throw new IllegalArgumentException("Invalid search space for " + entry.getKey() + ": " + choices);
+            }
+            Map<?, ?> range = (Map<?, ?>) choices;
+            if (!(range.get("min") instanceof Number) || !(range.get("max") instanceof Number)) {
+                throw new IllegalArgumentException("The range of " + entry.getKey() + " needs a min and a max");
+            }
+            double min = ((Number) range.get("min")).doubleValue();
+            double max = ((Number) range.get("max")).doubleValue();
+            if (!(min < max)) {
+                throw new IllegalArgumentException("The range of " + entry.getKey() + " needs min < max");
+            }
+            if (Boolean.TRUE.equals(range.get("log")) && min <= 0) {
+                throw new IllegalArgumentException("The log range of " + entry.getKey() + " needs min > 0");
+            }
+        }
+    }
+
+    private static int getInt(Map<String, Object> spec, String key, int defaultValue) {
+        return spec.containsKey(key) ? ((Number) spec.get(key)).intValue() : defaultValue;
+    }
+
+    public static class Trial {
+
+        private final int id;
+        private final Map<String, Object> sampled;
+        private final Map<String, Object> params;
+        private MultiLayerNetwork network;
+        private int epochs = 0;
+        private double score = Double.NaN;
+        private double fitSeconds = 0;
+        private boolean pruned = false;
+
+        private Trial(int id, Map<String, Object> sampled, Map<String, Object> params) {
+            this.id = id;
+            this.sampled = sampled;
+            this.params = params;
+        }
+
+        public Map<String, Object> getParams() {
+            return params;
+        }
+
+        public MultiLayerNetwork getNetwork() {
+            return network;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public Map<String, Object> describe() {
+            Map<String, Object> description = new LinkedHashMap<>();
+            description.put("trial", id);
+            description.put("values", sampled);
+            description.put("epochs", epochs);
+            description.put("score", score);
+            description.put("fitSeconds", fitSeconds);
+            description.put("pruned", pruned);
+            return description;
+        }
+    }
+
+    /*
+    Runs the search and returns the trials with the best first. Trials are scored on the validation batches,
+    keepRunning is checked after every epoch of a trial and stops the search with the best trial so far.
+    */
+    public List<Trial> run(List<DataSet> data, List<String> paths, List<DataSet> validationData,
+                           List<String> validationPaths, DataStorage storage, BooleanSupplier keepRunning)
+            throws IOException, InterruptedException {
+        List<Trial> all = new ArrayList<>();
+        for (int i = 0; i < trials; i++) {
+            all.add(sample(i));
+        }
+
+        long start = System.nanoTime();
+        List<Trial> alive = new ArrayList<>(all);
+        int rungEpochs = minEpochs;
+        ExecutorService pool = Executors.newFixedThreadPool(parallelTrials);
+        try {
+            while (true) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (Trial trial : alive) {
+                    int target = rungEpochs;
+                    futures.add(pool.submit((Callable<Void>) () -> {
+                        train(trial, target, data, paths, validationData, validationPaths, storage, keepRunning);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+
+                alive.sort(Comparator.comparingDouble(trial -> Double.isNaN(trial.score) ? Double.POSITIVE_INFINITY : trial.score));
+                log.info("Search rung of {} epochs done, best score {} of {} trials", rungEpochs, alive.get(0).score, alive.size());
+                if (alive.size() == 1 || rungEpochs >= maxEpochs || !keepRunning.getAsBoolean()) {
+                    break;
+                }
+
+                // Successive halving: the rest of the trials are dropped along with their networks
+                List<Trial> kept = new ArrayList<>(alive.subList(0, Math.max(1, alive.size() / reduction)));
+                for (Trial trial : alive.subList(kept.size(), alive.size())) {
+                    trial.pruned = true;
+                    trial.network = null;
+                }
+                alive = kept;
+                rungEpochs = Math.min(maxEpochs, rungEpochs * reduction);
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("A search trial failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long trialEpochs = all.stream().mapToLong(trial -> trial.epochs).sum();
+        log.info("Search finished in {} s with {} trial epochs, sequential full runs would take {}",
+                String.format("%.1f", (System.nanoTime() - start) / 1e9), trialEpochs, (long) trials * maxEpochs);
+
+        List<Trial> ranked = new ArrayList<>(alive);
+        for (Trial trial : all) {
+            if (!ranked.contains(trial)) {
+                ranked.add(trial);
+            }
+        }
+        return ranked;
+    }
+
+    // Trains the trial until it has seen the given number of epochs or the search is stopped, then scores it
+    private static void train(Trial trial, int epochs, List<DataSet> data, List<String> paths,
+                              List<DataSet> validationData, List<String> validationPaths, DataStorage storage,
+                              BooleanSupplier keepRunning) throws IOException {
+        if (trial.network == null) {
+            trial.network = new MultiLayerNetwork(JsonParser.parseNetworkFile(trial.params));
+            trial.network.init();
+        }
+        long start = System.nanoTime();
+        while (trial.epochs < epochs && keepRunning.getAsBoolean()) {
+            trial.network.fit(DataParser.iterateDataSets(data, paths, storage));
+            trial.epochs++;
+        }
+        trial.fitSeconds += (System.nanoTime() - start) / 1e9;
+        trial.score = DataParser.score(trial.network, validationData, validationPaths, storage);
+    }
+
+    private Trial sample(int id) {
+        Map<String, Object> params = copy(baseParams);
+        Map<String, Object> sampled = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : space.entrySet()) {
+            Object value = sampleValue(entry.getKey(), entry.getValue());
+            set(params, entry.getKey(), value);
+            sampled.put(entry.getKey(), value);
+        }
+        return new Trial(id, sampled, params);
+    }
+
+    private Object sampleValue(String path, Object choices) {
+        if (choices instanceof List) {
+            List<?> values = (List<?>) choices;
+            return values.get(random.nextInt(values.size()));
+        }
+        if (choices instanceof Map) {
+            Map<?, ?> range = (Map<?, ?>) choices;
+            double min = ((Number) range.get("min")).doubleValue();
+            double max = ((Number) range.get("max")).doubleValue();
+            double value = Boolean.TRUE.equals(range.get("log"))
+                    ? Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min)))
+                    : min + random.nextDouble() * (max - min);
+            if (Boolean.TRUE.equals(range.get("integer"))) {
+                return (int) Math.round(value);
+            }
+            return value;
+        }
+        throw new IllegalArgumentException("Invalid search space for " + path + ": " + choices);
+    }
+
+    // Sets a dotted path such as layer0.dropoutRate, keeping the number type the parser expects there
+    @SuppressWarnings("unchecked")
+    private static void set(Map<String, Object> params, String path, Object value) {
+        String[] keys = path.split("\\.");
+        Map<String, Object> map = params;
+        for (int i = 0; i < keys.length - 1; i++) {
+            Object next = map.get(keys[i]);
+            if (!(next instanceof Map)) {
+                throw new IllegalArgumentException("No " + keys[i] + " in the network map for " + path);
+            }
+            map = (Map<String, Object>) next;
+        }
+        String key = keys[keys.length - 1];
+        Object current = map.get(key);
+        if (value instanceof Number) {
+            if (current instanceof Integer) {
+                value = (int) Math.round(((Number) value).doubleValue());
+            }
+            else if (current instanceof Double || current == null && !(value instanceof Integer)) {
+                value = ((Number) value).doubleValue();
+            }
+        }
+        map.put(key, value);
+    }
+
+    private static Map<String, Object> copy(Map<String, Object> params) {
+        try {
+            return JsonParser.generateMap(new ObjectMapper().writeValueAsString(params));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.trainingJAR;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/inference")
+public class InferenceController {
+
+    /*
+    Body: {"name": ..., "modelPath": ..., "configPath": ...} with the model zip and the network file it was trained with.
+    Optional "inferenceBatchSize" and "inferenceMaxWaitMillis" replace the values of the network file.
+    */
+    @PostMapping("/models")
+    public Map<String, Object> loadModel(@RequestBody Map<String, Object> body) throws IOException {
+        String name = (String) body.get("name");
+        String modelPath = (String) body.get("modelPath");
+        String configPath = (String) body.get("configPath");
+        if (name == null || modelPath == null || configPath == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "name, modelPath and configPath are required");
+        }
+
+        Map<String, Object> overrides = new LinkedHashMap<>();
+        for (String key : new String[] {"inferenceBatchSize", "inferenceMaxWaitMillis"}) {
+            if (body.get(key) instanceof Number) {
+                overrides.put(key, body.get(key));
+            }
+        }
+        return InferenceServer.get().load(name, modelPath, configPath, overrides).describe();
+    }
+
+    @GetMapping("/models")
+    public List<Map<String, Object>> listModels() {
+        List<Map<String, Object>> models = new ArrayList<>();
+        for (InferenceModel model : InferenceServer.get().list()) {
+            models.add(model.describe());
+        }
+        return models;
+    }
+
+    @GetMapping("/models/{name}")
+    public Map<String, Object> getModel(@PathVariable String name) {
+        InferenceModel model = findModel(name);
+        Map<String, Object> description = model.describe();
+        description.put("metrics", model.snapshot());
+        return description;
+    }
+
+    @DeleteMapping("/models/{name}")
+    public Map<String, Object> unloadModel(@PathVariable String name) {
+        InferenceModel model = InferenceServer.get().unload(name);
+        if (model == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No model " + name);
+        }
+        return model.describe();
+    }
+
+    // Body: the encoded image, in any format the training images could have
+    @PostMapping("/models/{name}/predict")
+    public Map<String, Object> predict(@PathVariable String name, @RequestBody byte[] image) throws InterruptedException {
+        InferenceModel model = findModel(name);
+        INDArray output;
+        try {
+            output = model.predict(image);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+
+        Map<String, Object> prediction = new LinkedHashMap<>();
+        prediction.put("output", output.ravel().toDoubleVector());
+        if (model.isNotRegression()) {
+            prediction.put("label", output.ravel().argMax().getInt(0));
+        }
+        return prediction;
+    }
+
+    private static InferenceModel findModel(String name) {
+        InferenceModel model = InferenceServer.get().getModel(name);
+        if (model == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No model " + name);
+        }
+        return model;
+    }
+}
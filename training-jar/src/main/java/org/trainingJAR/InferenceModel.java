@@ -0,0 +1,313 @@
+package org.trainingJAR;
+
+import org.datavec.image.loader.NativeImageLoader;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+A trained network loaded once and kept in memory to answer predictions. Images are decoded and normalized
+on the request threads exactly like the training batches, then a single thread merges the requests that
+arrive within maxWait of each other into one batch of up to maxBatchSize and runs the network once for all of them.
+A model that is replaced still answers every request it was given, one that is unloaded fails them.
+*/
+public class InferenceModel {
+
+    private static final Logger log = LoggerFactory.getLogger(InferenceModel.class);
+
+    private static final int LATENCIES_KEPT = 10_000;
+
+    private final String name;
+    private final String modelPath;
+    private final MultiLayerNetwork network;
+    private final DataNormalization normalizer;
+    private final int[] dataShape;
+    private final boolean isNotRegression;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final boolean flatten;
+    private final DataType dataType;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread batcher;
+    private volatile boolean retired = false;
+    private volatile boolean unloaded = false;
+    // Set by the batcher when it has stopped taking requests
+    private volatile boolean stopped = false;
+    // The same decoding as the ImageRecordReader of the training data, one loader per request thread
+    private final ThreadLocal<NativeImageLoader> loaders;
+
+    // Latency and completion time of the last requests, in a ring
+    private final long[] latencies = new long[LATENCIES_KEPT];
+    private final long[] completions = new long[LATENCIES_KEPT];
+    private long recorded = 0;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+
+    private static class Request {
+        private final INDArray features;
+        private final long enqueued = System.nanoTime();
+        private final CompletableFuture<INDArray> result = new CompletableFuture<>();
+
+        private Request(INDArray features) {
+            this.features = features;
+        }
+    }
+
+    public InferenceModel(String name, String modelPath, MultiLayerNetwork network, DataNormalization normalizer,
+                          Map<String, Object> params) {
+        this.name = name;
+        this.modelPath = modelPath;
+        this.network = network;
+        this.normalizer = normalizer;
+        this.dataShape = JsonParser.getDataShape(params);
+        this.isNotRegression = JsonParser.isNotRegression(params);
+        this.maxBatchSize = Math.max(1, JsonParser.getInferenceBatchSize(params));
+        this.maxWaitNanos = (long) (JsonParser.getInferenceMaxWaitMillis(params) * 1e6);
+        this.loaders = ThreadLocal.withInitial(() -> new NativeImageLoader(dataShape[1], dataShape[0], dataShape[2]));
+
+        // A network that starts with a dense layer gets the pixels of the image as one row
+        this.flatten = network.getLayer(0).type() == Layer.Type.FEED_FORWARD
+                && network.getLayerWiseConfigurations().getInputPreProcess(0) == null;
+
+        this.dataType = network.params().dataType();
+
+        // The first pass allocates the workspaces, better here than on the first request
+        network.output(shape(Nd4j.zeros(1, dataShape[2], dataShape[1], dataShape[0])).castTo(dataType), false);
+
+        this.batcher = new Thread(this::serve, "inference-" + name);
+        batcher.setDaemon(true);
+        batcher.start();
+    }
+
+    /*
+    Blocks until the batch with this image has been run. An image that cannot be decoded is an
+    IllegalArgumentException, a failure of the model an IOException.
+    */
+    public INDArray predict(byte[] image) throws IOException, InterruptedException {
+        INDArray features;
+        try {
+            features = shape(loaders.get().asMatrix(new ByteArrayInputStream(image)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not decode the image: " + e.getMessage(), e);
+        }
+        if (normalizer != null) {
+            normalizer.transform(features);
+        }
+
+        Request request = new Request(features);
+        queue.add(request);
+        // The batcher stopped in the meantime, unless it already took the request while stopping
+        if (stopped && queue.remove(request)) {
+            if (unloaded) {
+                throw new IllegalStateException("Model " + name + " has been unloaded.");
+            }
+            runBatch(Collections.singletonList(request));
+        }
+        try {
+            return request.result.get();
+        } catch (ExecutionException e) {
+            if (unloaded && e.getCause() instanceof IllegalStateException) {
+                throw (IllegalStateException) e.getCause();
+            }
+            throw new IOException("Prediction failed.", e.getCause());
+        }
+    }
+
+    private INDArray shape(INDArray features) {
+        return flatten ? features.reshape(1, features.length()) : features;
+    }
+
+    public boolean isNotRegression() {
+        return isNotRegression;
+    }
+
+    private void serve() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        while (!unloaded) {
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                // Woken by retire or close, what was collected is still run unless the model was unloaded
+            }
+            if (batch.isEmpty()) {
+                if (retired) {
+                    break;
+                }
+                continue;
+            }
+            if (!unloaded) {
+                runSafely(batch);
+                batch.clear();
+            }
+        }
+
+        stopped = true;
+        queue.drainTo(batch);
+        if (unloaded) {
+            for (Request request : batch) {
+                request.result.completeExceptionally(new IllegalStateException("Model " + name + " has been unloaded."));
+            }
+        }
+        else if (!batch.isEmpty()) {
+            runSafely(batch);
+        }
+    }
+
+    // Waits for the next batch, a retired model only takes what is already queued
+    private void collect(List<Request> batch) throws InterruptedException {
+        Request first = retired ? queue.poll() : queue.take();
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        // The wait counts from the arrival of the first request, a request that already queued long enough goes right away
+        long deadline = first.enqueued + maxWaitNanos;
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0) {
+                break;
+            }
+            Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    // The batcher has to outlive a failed batch, the requests after it would wait forever
+    private void runSafely(List<Request> batch) {
+        try {
+            runBatch(batch);
+        } catch (RuntimeException e) {
+            log.error("Inference batch of {} requests failed on model {}", batch.size(), name, e);
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void runBatch(List<Request> batch) {
+        long start = System.nanoTime();
+        INDArray output = null;
+        RuntimeException failure = null;
+        try {
+            INDArray[] features = new INDArray[batch.size()];
+            for (int i = 0; i < features.length; i++) {
+                features[i] = batch.get(i).features;
+            }
+            INDArray input = features.length == 1 ? features[0] : Nd4j.concat(0, features);
+            // Only the requests of a retired model that came after its batcher stopped run on another thread
+            synchronized (network) {
+                output = network.output(input.castTo(dataType), false);
+            }
+        } catch (RuntimeException e) {
+            log.error("Inference batch of {} requests failed on model {}", batch.size(), name, e);
+            failure = e;
+        }
+
+        // Recorded before the requests are released, so that a snapshot taken after a response includes it
+        long end = System.nanoTime();
+        batches.incrementAndGet();
+        batchNanos.addAndGet(end - start);
+        requests.addAndGet(batch.size());
+        synchronized (latencies) {
+            for (Request request : batch) {
+                int slot = (int) (recorded++ % LATENCIES_KEPT);
+                latencies[slot] = end - request.enqueued;
+                completions[slot] = end;
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (failure != null) {
+                batch.get(i).result.completeExceptionally(failure);
+            }
+            else {
+                batch.get(i).result.complete(output.slice(i).dup());
+            }
+        }
+    }
+
+    // Percentiles and throughput over the last requests, up to LATENCIES_KEPT of them
+    public Map<String, Object> snapshot() {
+        long[] window;
+        long firstCompletion = Long.MAX_VALUE;
+        long lastCompletion = Long.MIN_VALUE;
+        synchronized (latencies) {
+            int count = (int) Math.min(recorded, LATENCIES_KEPT);
+            window = Arrays.copyOf(latencies, count);
+            for (int i = 0; i < count; i++) {
+                firstCompletion = Math.min(firstCompletion, completions[i]);
+                lastCompletion = Math.max(lastCompletion, completions[i]);
+            }
+        }
+        Arrays.sort(window);
+
+        long totalBatches = batches.get();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("requests", requests.get());
+        snapshot.put("batches", totalBatches);
+        snapshot.put("meanBatchSize", totalBatches > 0 ? (double) requests.get() / totalBatches : 0);
+        snapshot.put("meanBatchMillis", totalBatches > 0 ? batchNanos.get() / 1e6 / totalBatches : 0);
+        snapshot.put("queued", queue.size());
+        snapshot.put("p50Millis", percentile(window, 0.5) / 1e6);
+        snapshot.put("p99Millis", percentile(window, 0.99) / 1e6);
+        snapshot.put("requestsPerSecond", window.length > 1 && lastCompletion > firstCompletion
+                ? window.length / ((lastCompletion - firstCompletion) / 1e9) : 0);
+        return snapshot;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    public Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("name", name);
+        description.put("modelPath", modelPath);
+        description.put("dataShape", dataShape);
+        description.put("numParams", network.numParams());
+        description.put("maxBatchSize", maxBatchSize);
+        description.put("maxWaitMillis", maxWaitNanos / 1e6);
+        return description;
+    }
+
+    // Answers the requests already given to the model and stops, for a model replaced by another one
+    public void retire() {
+        retired = true;
+        batcher.interrupt();
+    }
+
+    // Fails the requests that have not been run yet
+    public void close() {
+        unloaded = true;
+        batcher.interrupt();
+    }
+}
@@ -0,0 +1,91 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+The models this process serves predictions from, by name. Loading a model under a name that is already
+in use swaps the new one in and retires the old one, which still answers the requests it was given, so a
+model can be replaced without downtime.
+*/
+public class InferenceServer {
+
+    private static final Logger log = LoggerFactory.getLogger(InferenceServer.class);
+
+    private static volatile InferenceServer instance;
+
+    private final S3Fetcher s3Fetcher;
+    private final Map<String, InferenceModel> models = new ConcurrentHashMap<>();
+
+    private InferenceServer(S3Fetcher s3Fetcher) {
+        this.s3Fetcher = s3Fetcher;
+    }
+
+    public static synchronized InferenceServer init(S3Fetcher s3Fetcher) {
+        if (instance == null) {
+            instance = new InferenceServer(s3Fetcher);
+        }
+        return instance;
+    }
+
+    public static InferenceServer get() {
+        if (instance == null) {
+            throw new IllegalStateException("The inference server has not been started.");
+        }
+        return instance;
+    }
+
+    /*
+    The config is the network file the model was trained with, for its dataShape. The normalizer comes
+    from the model zip. Settings in overrides replace those of the config, e.g. inferenceBatchSize.
+    */
+    public InferenceModel load(String name, String modelPath, String configPath, Map<String, Object> overrides)
+            throws IOException {
+        long start = System.nanoTime();
+        Map<String, Object> params = JsonParser.getNetworkMap(s3Fetcher.downloadPath(configPath));
+        params.putAll(overrides);
+
+        ModelStore modelStore = new ModelStore(s3Fetcher, ModelStore.getDefaultCacheDirectory());
+        // Exported models are only read from a local file, every model goes through the cache first
+        File modelFile = modelStore.fetch(modelPath);
+        MultiLayerNetwork network = ModelExporter.restore(modelFile);
+        DataNormalization normalizer = ModelSerializer.restoreNormalizerFromFile(modelFile);
+        if (normalizer == null) {
+            log.warn("Model {} has no normalizer, its inputs are used as decoded", modelPath);
+        }
+
+        InferenceModel model = new InferenceModel(name, modelPath, network, normalizer, params);
+        InferenceModel previous = models.put(name, model);
+        if (previous != null) {
+            previous.retire();
+        }
+        log.info("Loaded model {} as {} in {} s", modelPath, name, String.format("%.2f", (System.nanoTime() - start) / 1e9));
+        return model;
+    }
+
+    public InferenceModel getModel(String name) {
+        return models.get(name);
+    }
+
+    public List<InferenceModel> list() {
+        return new ArrayList<>(models.values());
+    }
+
+    public InferenceModel unload(String name) {
+        InferenceModel model = models.remove(name);
+        if (model != null) {
+            model.close();
+        }
+        return model;
+    }
+}
@@ -0,0 +1,111 @@
+package org.trainingJAR;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Runs the training jobs of this process. A fixed number of jobs train at the same time and the rest wait
+in submission order. Running jobs share the JVM, the ND4J backend and one Spark context. The last
+MAX_FINISHED_JOBS finished jobs stay listed with their metrics, older ones are forgotten.
+*/
+public class JobManager {
+
+    private static final Logger log = LoggerFactory.getLogger(JobManager.class);
+
+    private static final int DEFAULT_MAX_JOBS = 2;
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    private static volatile JobManager instance;
+
+    private final S3Fetcher s3Fetcher;
+    private final ExecutorService executor;
+    private final Map<String, TrainingJob> jobs = new LinkedHashMap<>();
+    private final Deque<String> finishedIds = new ArrayDeque<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    private JobManager(S3Fetcher s3Fetcher, int maxJobs) {
+        this.s3Fetcher = s3Fetcher;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxJobs,
+                runnable -> new Thread(runnable, "training-job-" + threads.incrementAndGet()));
+    }
+
+    public static synchronized JobManager init(S3Fetcher s3Fetcher) {
+        if (instance == null) {
+            String maxJobs = System.getenv("TRAINING_MAX_JOBS");
+            instance = new JobManager(s3Fetcher, maxJobs != null && !maxJobs.isEmpty()
+                    ? Integer.parseInt(maxJobs) : DEFAULT_MAX_JOBS);
+        }
+        return instance;
+    }
+
+    public static JobManager get() {
+        if (instance == null) {
+            throw new IllegalStateException("The job manager has not been started.");
+        }
+        return instance;
+    }
+
+    public TrainingJob submit(String dataPath, String configPath, boolean newTraining, String networkPath,
+                              String serverIp, String outputPath, Map<String, Object> search) {
+        String id = "job-" + nextId.getAndIncrement();
+        if (outputPath == null || outputPath.isEmpty()) {
+            outputPath = "models/" + id + ".zip";
+        }
+        TrainingJob job = new TrainingJob(id, dataPath, configPath, newTraining, networkPath, serverIp, outputPath,
+                search, s3Fetcher, this);
+        synchronized (jobs) {
+            jobs.put(id, job);
+        }
+        executor.submit(job);
+        log.info("Submitted training job {} on {} with {}", id, dataPath, configPath);
+        return job;
+    }
+
+    public List<TrainingJob> list() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs.values());
+        }
+    }
+
+    public TrainingJob getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    // Called by a job when it ends, however it ends
+    void finished(TrainingJob job) {
+        synchronized (jobs) {
+            finishedIds.addLast(job.getId());
+            while (finishedIds.size() > MAX_FINISHED_JOBS) {
+                String id = finishedIds.removeFirst();
+                jobs.remove(id);
+                TrainingMetrics.removeJob(id);
+            }
+        }
+    }
+
+    public void stopAll() {
+        for (TrainingJob job : list()) {
+            job.stop();
+        }
+    }
+
+    // One lock object per key, for work on shared files that two jobs must not do at the same time
+    Object lockFor(String key) {
+        return locks.computeIfAbsent(key, k -> new Object());
+    }
+}
@@ -3,22 +3,34 @@ package org.trainingJAR;
 import com.amazonaws.services.s3.model.transform.SelectObjectContentEventUnmarshaller;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.ConvolutionMode;
 import org.deeplearning4j.nn.conf.InputPreProcessor;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
 import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.*;
 import org.deeplearning4j.nn.conf.preprocessor.CnnToFeedForwardPreProcessor;
 import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToCnnPreProcessor;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.solvers.accumulation.encoding.ResidualPostProcessor;
+import org.deeplearning4j.optimize.solvers.accumulation.encoding.ThresholdAlgorithm;
+import org.deeplearning4j.optimize.solvers.accumulation.encoding.residual.NoOpResidualPostProcessor;
+import org.deeplearning4j.optimize.solvers.accumulation.encoding.residual.ResidualClippingPostProcessor;
+import org.deeplearning4j.optimize.solvers.accumulation.encoding.threshold.AdaptiveThresholdAlgorithm;
+import org.deeplearning4j.optimize.solvers.accumulation.encoding.threshold.FixedThresholdAlgorithm;
+import org.deeplearning4j.optimize.solvers.accumulation.encoding.threshold.TargetSparsityThresholdAlgorithm;
+import org.deeplearning4j.parallelism.ParallelWrapper;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ops.random.impl.BinomialDistributionEx;
 import org.nd4j.linalg.learning.config.*;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import scala.Int;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.Array;
@@ -30,15 +42,17 @@ import java.util.regex.Pattern;
 
 public class JsonParser {
 
-    public static OutputLayer outputLayer;
     public static MultiLayerConfiguration parseNetworkFile(Map<String, Object> params) throws IOException {
         List<Map<String, Object>> listLayers = getLayerMaps(params);
         List<Map<String, Object>> listPreProcessors = new ArrayList<Map<String, Object>>();
-        int[] dataShape = getDataShape(params);
         int outputs = (int)params.get("outputs");
 
         NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder()
-                .activation(Activation.valueOf((String)params.get("activation"))).updater(getUpdater(params));
+                .activation(Activation.valueOf((String)params.get("activation"))).updater(getUpdater(params))
+                .dataType(getDataType(params))
+                .trainingWorkspaceMode(getWorkspaceMode(params, "trainingWorkspaceMode"))
+                .inferenceWorkspaceMode(getWorkspaceMode(params, "inferenceWorkspaceMode"))
+                .cacheMode(getCacheMode(params));
 
         NeuralNetConfiguration.ListBuilder listBuilder = builder.list();
 
@@ -53,20 +67,23 @@ public class JsonParser {
             }
         }
 
-        if (((String)listLayers.get(0).get("type")).equalsIgnoreCase("dense")){
-            listBuilder.setInputType(InputType.feedForward(dataShape[0]));
-        }
-        else {
-            listBuilder.setInputType(InputType.convolutional(dataShape[0], dataShape[1], dataShape[2]));
-        }
+        InputType inputType = getInputType(params);
+        listBuilder.setInputType(inputType);
 
         MultiLayerConfiguration configuration = listBuilder.build();
-
-        configuration.getConf(configuration.getConfs().size()).setLayer(outputLayer);
+        MemoryProfile.apply(configuration, inputType, params);
 
         return configuration;
     }
 
+    public static InputType getInputType(Map<String, Object> params) {
+        int[] dataShape = getDataShape(params);
+        if (((String)getLayerMaps(params).get(0).get("type")).equalsIgnoreCase("dense")){
+            return InputType.feedForward(dataShape[0]);
+        }
+        return InputType.convolutional(dataShape[0], dataShape[1], dataShape[2]);
+    }
+
     public static Map<String, Object> getNetworkMap(String path) {
         String jsonNetwork = stringify(path);
         Map<String, Object> params = generateMap(jsonNetwork);
@@ -82,6 +99,237 @@ public class JsonParser {
         return (boolean)params.get("isNotRegression");
     }
 
+    public static int getBatchSize(Map<String, Object> params) {
+        return params.containsKey("batchSize") ? (int)params.get("batchSize") : 32;
+    }
+
+    public static int getPrefetchBuffer(Map<String, Object> params) {
+        return params.containsKey("prefetchBuffer") ? (int)params.get("prefetchBuffer") : 2;
+    }
+
+    public static double getValidationSplit(Map<String, Object> params) {
+        return params.containsKey("validationSplit") ? ((Number)params.get("validationSplit")).doubleValue() : 0;
+    }
+
+    public static int getPatience(Map<String, Object> params) {
+        return params.containsKey("patience") ? ((Number)params.get("patience")).intValue() : 0;
+    }
+
+    public static double getMinImprovement(Map<String, Object> params) {
+        return params.containsKey("minImprovement") ? ((Number)params.get("minImprovement")).doubleValue() : 0;
+    }
+
+    public static int getMaxEpochs(Map<String, Object> params) {
+        return params.containsKey("maxEpochs") ? ((Number)params.get("maxEpochs")).intValue() : 0;
+    }
+
+    public static double getMaxTrainingMinutes(Map<String, Object> params) {
+        return params.containsKey("maxTrainingMinutes") ? ((Number)params.get("maxTrainingMinutes")).doubleValue() : 0;
+    }
+
+    public static int getWorkersPerNode(Map<String, Object> params) {
+        return params.containsKey("workersPerNode") ? ((Number)params.get("workersPerNode")).intValue() : 1;
+    }
+
+    // "spark" trains through Spark, "parallel" trains on the cores of this machine only
+    public static String getEngine(Map<String, Object> params) {
+        String engine = params.containsKey("engine") ? (String)params.get("engine") : "spark";
+        if (!engine.equals("spark") && !engine.equals("parallel")) {
+            throw new RuntimeException("Unknown training engine: " + engine);
+        }
+        return engine;
+    }
+
+    // Workers of the parallel engine, by default one per core. ParallelWrapper needs at least two
+    public static int getLocalWorkers(Map<String, Object> params) {
+        int workers = params.containsKey("workersPerNode") ? getWorkersPerNode(params) : Runtime.getRuntime().availableProcessors();
+        return Math.max(2, workers);
+    }
+
+    public static ParallelWrapper.TrainingMode getParallelTrainingMode(Map<String, Object> params) {
+        String mode = params.containsKey("parallelTrainingMode") ? (String)params.get("parallelTrainingMode") : "sharedGradients";
+        switch (mode) {
+            case "sharedGradients":
+                return ParallelWrapper.TrainingMode.SHARED_GRADIENTS;
+            case "averaging":
+                return ParallelWrapper.TrainingMode.AVERAGING;
+            default:
+                throw new RuntimeException("Unknown parallel training mode: " + mode);
+        }
+    }
+
+    public static int getAveragingFrequency(Map<String, Object> params) {
+        return params.containsKey("averagingFrequency") ? ((Number)params.get("averagingFrequency")).intValue() : 3;
+    }
+
+    public static int getBatchSizePerWorker(Map<String, Object> params) {
+        return params.containsKey("batchSizePerWorker") ? ((Number)params.get("batchSizePerWorker")).intValue() : getBatchSize(params);
+    }
+
+    // How the gradient sharing threshold is chosen, "adaptive" keeps the update sparsity within a range
+    public static ThresholdAlgorithm getThresholdAlgorithm(Map<String, Object> params) {
+        String algorithm = params.containsKey("thresholdAlgorithm") ? (String)params.get("thresholdAlgorithm") : "adaptive";
+        double threshold = params.containsKey("threshold") ? ((Number)params.get("threshold")).doubleValue()
+                : AdaptiveThresholdAlgorithm.DEFAULT_INITIAL_THRESHOLD;
+        switch (algorithm) {
+            case "adaptive":
+                return new AdaptiveThresholdAlgorithm(threshold);
+            case "fixed":
+                return new FixedThresholdAlgorithm(threshold);
+            case "targetSparsity":
+                double sparsityTarget = params.containsKey("sparsityTarget") ? ((Number)params.get("sparsityTarget")).doubleValue() : 1e-3;
+                return new TargetSparsityThresholdAlgorithm(threshold, sparsityTarget, AdaptiveThresholdAlgorithm.DEFAULT_DECAY_RATE);
+            default:
+                throw new RuntimeException("Unknown threshold algorithm: " + algorithm);
+        }
+    }
+
+    // Clips the residual to a multiple of the threshold every few iterations, a multiple of 0 turns clipping off
+    public static ResidualPostProcessor getResidualPostProcessor(Map<String, Object> params) {
+        double clipMultiple = params.containsKey("residualClipMultiple") ? ((Number)params.get("residualClipMultiple")).doubleValue() : 5;
+        int clipFrequency = params.containsKey("residualClipFrequency") ? ((Number)params.get("residualClipFrequency")).intValue() : 5;
+        if (clipMultiple <= 0) {
+            return new NoOpResidualPostProcessor();
+        }
+        return new ResidualClippingPostProcessor(clipMultiple, clipFrequency);
+    }
+
+    public static int getCheckpointEpochs(Map<String, Object> params) {
+        return params.containsKey("checkpointEpochs") ? ((Number)params.get("checkpointEpochs")).intValue() : 0;
+    }
+
+    public static double getCheckpointMinutes(Map<String, Object> params) {
+        return params.containsKey("checkpointMinutes") ? ((Number)params.get("checkpointMinutes")).doubleValue() : 0;
+    }
+
+    public static int getCheckpointsKept(Map<String, Object> params) {
+        return params.containsKey("checkpointsKept") ? ((Number)params.get("checkpointsKept")).intValue() : 3;
+    }
+
+    // Largest batch the inference endpoint merges concurrent requests into
+    public static int getInferenceBatchSize(Map<String, Object> params) {
+        return params.containsKey("inferenceBatchSize") ? ((Number)params.get("inferenceBatchSize")).intValue() : 32;
+    }
+
+    // How long the first request of a batch waits for more to arrive
+    public static double getInferenceMaxWaitMillis(Map<String, Object> params) {
+        return params.containsKey("inferenceMaxWaitMillis") ? ((Number)params.get("inferenceMaxWaitMillis")).doubleValue() : 2;
+    }
+
+    // "enabled" reuses the same off-heap memory for the arrays of every iteration, "none" allocates them each time
+    public static WorkspaceMode getWorkspaceMode(Map<String, Object> params, String key) {
+        String mode = params.containsKey(key) ? (String)params.get(key) : "enabled";
+        switch (mode) {
+            case "enabled":
+                return WorkspaceMode.ENABLED;
+            case "none":
+                return WorkspaceMode.NONE;
+            default:
+                throw new RuntimeException("Unknown workspace mode: " + mode);
+        }
+    }
+
+    // Whether layers keep forward pass results such as the im2col of convolutions for backprop
+    public static CacheMode getCacheMode(Map<String, Object> params) {
+        String mode = params.containsKey("cacheMode") ? (String)params.get("cacheMode") : "none";
+        switch (mode) {
+            case "none":
+                return CacheMode.NONE;
+            case "host":
+                return CacheMode.HOST;
+            case "device":
+                return CacheMode.DEVICE;
+            default:
+                throw new RuntimeException("Unknown cache mode: " + mode);
+        }
+    }
+
+    // "auto" picks the settings above that are not given from the layers and the free memory, see MemoryProfile
+    public static String getMemoryProfile(Map<String, Object> params) {
+        String profile = params.containsKey("memoryProfile") ? (String)params.get("memoryProfile") : "default";
+        if (!profile.equals("default") && !profile.equals("auto")) {
+            throw new RuntimeException("Unknown memory profile: " + profile);
+        }
+        return profile;
+    }
+
+    // Also export an inference-only copy of the trained model, see ModelExporter
+    public static boolean exportForInference(Map<String, Object> params) {
+        return params.containsKey("inferenceExport") && (boolean)params.get("inferenceExport");
+    }
+
+    public static String getInferenceQuantization(Map<String, Object> params) {
+        String quantization = params.containsKey("inferenceQuantization") ? (String)params.get("inferenceQuantization") : "int8";
+        if (!quantization.equals("none") && !quantization.equals("fp16") && !quantization.equals("int8")) {
+            throw new RuntimeException("Unknown quantization: " + quantization);
+        }
+        return quantization;
+    }
+
+    // Fraction of the weights of every dense and convolution layer set to zero, the smallest first
+    public static double getInferencePruning(Map<String, Object> params) {
+        return params.containsKey("inferencePruning") ? ((Number)params.get("inferencePruning")).doubleValue() : 0;
+    }
+
+    public static boolean collectTrainingStats(Map<String, Object> params) {
+        return params.containsKey("collectTrainingStats") && (boolean)params.get("collectTrainingStats");
+    }
+
+    // Threads decoding and resizing the images, 1 decodes them in order on the consuming thread
+    public static int getDecodeThreads(Map<String, Object> params) {
+        return params.containsKey("decodeThreads") ? ((Number)params.get("decodeThreads")).intValue()
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    // Seed to shuffle the image files with, null keeps them in the order of the directory
+    public static Long getShuffleSeed(Map<String, Object> params) {
+        return params.containsKey("shuffleSeed") ? ((Number)params.get("shuffleSeed")).longValue() : null;
+    }
+
+    // How collected batches are kept in memory: "float", "uint8" pixels or "fp16" normalized features
+    public static String getDataStorage(Map<String, Object> params) {
+        String storage = params.containsKey("dataStorage") ? (String)params.get("dataStorage") : "float";
+        if (!storage.equals("float") && !storage.equals("uint8") && !storage.equals("fp16")) {
+            throw new RuntimeException("Unknown data storage: " + storage);
+        }
+        return storage;
+    }
+
+    // Precision of the parameters and activations of the network: "float", "half" or "double"
+    public static DataType getDataType(Map<String, Object> params) {
+        String dataType = params.containsKey("dataType") ? (String)params.get("dataType") : "float";
+        switch (dataType) {
+            case "float":
+                return DataType.FLOAT;
+            case "half":
+                return DataType.FLOAT16;
+            case "double":
+                return DataType.DOUBLE;
+            default:
+                throw new RuntimeException("Unknown data type: " + dataType);
+        }
+    }
+
+    public static boolean cacheTensors(Map<String, Object> params) {
+        return params.containsKey("cacheTensors") && (boolean)params.get("cacheTensors");
+    }
+
+    // Keeps what was decoded in a manifest so that later jobs on the same data only decode new or changed files
+    public static boolean useDataManifest(Map<String, Object> params) {
+        return params.containsKey("dataManifest") && (boolean)params.get("dataManifest");
+    }
+
+    public static boolean exportData(Map<String, Object> params) {
+        return params.containsKey("exportData") && (boolean)params.get("exportData");
+    }
+
+    public static String getExportDirectory(Map<String, Object> params, String cachePath) {
+        if (params.containsKey("exportDirectory")) {
+            return (String)params.get("exportDirectory");
+        }
+        return cachePath + File.separator + "exported";
+    }
+
     public static String stringify(String path) {
         String content = "";
         try {
@@ -235,7 +483,7 @@ public class JsonParser {
                 layerBuilder.l2((double) layerMap.get("regularisationRateL2"));
             }
 
-            outputLayer = layerBuilder.build();
+            listBuilder.layer(index, layerBuilder.build());
         }
         return preprocessor;
     }
@@ -1,32 +1,16 @@
 package org.trainingJAR;
 
-import org.apache.spark.SparkConf;
-import org.apache.spark.api.java.JavaRDD;
-import org.apache.spark.api.java.JavaSparkContext;
-import org.datavec.api.records.reader.RecordReader;
-import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.deeplearning4j.spark.api.TrainingMaster;
-import org.deeplearning4j.spark.impl.multilayer.SparkDl4jMultiLayer;
-import org.deeplearning4j.spark.parameterserver.training.SharedTrainingMaster;
-import org.deeplearning4j.util.ModelSerializer;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 
-import java.io.IOException;
-import java.net.URI;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @SpringBootApplication
 public class Main {
 
-    public static boolean keepTraining;
-
-    public static SparkDl4jMultiLayer sparkNetwork;
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         /*
         args[0] = directory which contains the training data
         args[1] = the address of the file which contains the network parameters
@@ -37,79 +21,49 @@ public class Main {
         args[6] = newTraining boolean
         args[7] = pathToNetwork
         args[8] = serverIp
-        */
-
-        SpringApplication.run(Main.class, args);
+        The arguments describe the first job, more can be submitted to /api/training/jobs
+        Trained models can be loaded for predictions at /api/inference/models
 
+        --warmup alone starts and warms up everything a run loads and exits, see cdsArchive in build.gradle
+        */
 
-        if (args.length != 6) {
+        if (args.length == 1 && args[0].equals("--warmup")) {
+            warmUpAndExit();
+            return;
+        }
+        if (args.length != 9) {
             throw new RuntimeException("Number of arguments invalid.");
         }
 
-        boolean newTraining = Boolean.parseBoolean(args[6]);
-
-        keepTraining = true;
-
-        S3Fetcher s3Fetcher = new S3Fetcher(args[4], args[5], args[2], args[3]);
-
-        String configPath;
-        String dataPath;
-        configPath = s3Fetcher.downloadPath(args[1]);
-        dataPath = s3Fetcher.downloadPath(args[0]);
-
-        // initialize SparkContext
-        SparkConf sparkConf = new SparkConf();
-        sparkConf.setAppName("DL4J Spark Training");
-        sparkConf.setMaster("local[*]");
-        JavaSparkContext sc = new JavaSparkContext(sparkConf);
-
-        try {
-            Map<String, Object> params = JsonParser.getNetworkMap(configPath);
-            boolean isNotRegression = JsonParser.isNotRegression(params);
-            int[] dataShape = JsonParser.getDataShape(params);
-
-            CSVLabelGenerator labelGenerator = new CSVLabelGenerator(isNotRegression, dataPath, "csvfile.txt");
-            List<URI> files = DataParser.readFiles(dataPath, "csvfile.txt");
-            RecordReader recordReader = DataParser.generateRecordReader(dataShape, files, labelGenerator);
-            DataSetIterator dataIterator = DataParser.createDataSetIterator(recordReader, labelGenerator.getNumLabels());
-
-            // Create a list to hold your DataSet objects
-            List<DataSet> data = new ArrayList<>();
-            while (dataIterator.hasNext()) {
-                data.add(dataIterator.next());
-            }
-
-            JavaRDD<DataSet> dataRDD = sc.parallelize(data);
-
-            TrainingMaster master = new SharedTrainingMaster.Builder(1).build();
-
-            MultiLayerNetwork network;
-
-            if (!newTraining) {
-                network = new MultiLayerNetwork(JsonParser.parseNetworkFile(params));
-                network.init();
-            }
-            else {
-                network = ModelSerializer.restoreMultiLayerNetwork(s3Fetcher.downloadPath(args[7]));
-            }
-
-            sparkNetwork = new SparkDl4jMultiLayer(sc, network, master);
-
-            while(keepTraining) {
-                sparkNetwork.fit(dataRDD);
-                TrainingController.sendUpdate(sparkNetwork.getScore(), args[8]);
-            }
-
-            String modelFileName = "newModel.zip";
-            boolean saveUpdater = true; //Preserve optimizer's state for further training
-            ModelSerializer.writeModel(network, modelFileName, saveUpdater);
-            s3Fetcher.putObject(dataPath, modelFileName);
+        // The ND4J backend and the S3 client come up while Spring does
+        TrainingMetrics metrics = TrainingMetrics.getProcess();
+        CompletableFuture<Void> warmUp = Startup.async(metrics, "warmUp", () -> {
+            Startup.warmUp();
+            return null;
+        });
+        CompletableFuture<S3Fetcher> s3Client = Startup.async(metrics, "s3Client",
+                () -> new S3Fetcher(args[4], args[5], args[2], args[3], System.getenv("S3_ENDPOINT")));
 
+        long start = System.nanoTime();
+        SpringApplication.run(Main.class, args);
+        Startup.record(metrics, "spring", System.nanoTime() - start);
+
+        S3Fetcher s3Fetcher = Startup.join(s3Client);
+        InferenceServer.init(s3Fetcher);
+        JobManager.init(s3Fetcher).submit(args[0], args[1], Boolean.parseBoolean(args[6]), args[7], args[8], "newModel.zip", null);
+        // A failed warm-up only costs time, the first job initializes the backend itself
+        warmUp.exceptionally(e -> {
+            LoggerFactory.getLogger(Main.class).warn("Warm-up failed", e);
+            return null;
+        });
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+    private static void warmUpAndExit() {
+        ConfigurableApplicationContext context = SpringApplication.run(Main.class, "--server.port=0");
+        Startup.warmUp();
+        SparkEngine.getSharedContext();
+        SparkEngine.stopSharedContext();
+        context.close();
+        System.exit(0);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+package org.trainingJAR;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.conf.CacheMode;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.conf.memory.MemoryUseMode;
+import org.deeplearning4j.nn.conf.memory.NetworkMemoryReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+Workspace and cache settings of a network. The "auto" profile turns the workspaces on, so that the activations
+and gradients of every iteration reuse the same off-heap memory instead of being allocated and collected again,
+and caches the convolution forward pass for backprop when the estimate of what that costs fits the off-heap
+memory left. Settings given in the network file are kept. The data type is never changed, half precision
+runs slower than floats on the CPU backend.
+*/
+public class MemoryProfile {
+
+    private static final Logger log = LoggerFactory.getLogger(MemoryProfile.class);
+
+    // Share of the free off-heap memory the cache may take
+    private static final double CACHE_SHARE = 0.25;
+
+    public static void apply(MultiLayerConfiguration configuration, InputType inputType, Map<String, Object> params) {
+        if (!JsonParser.getMemoryProfile(params).equals("auto")) {
+            return;
+        }
+
+        if (!params.containsKey("trainingWorkspaceMode")) {
+            configuration.setTrainingWorkspaceMode(WorkspaceMode.ENABLED);
+        }
+        if (!params.containsKey("inferenceWorkspaceMode")) {
+            configuration.setInferenceWorkspaceMode(WorkspaceMode.ENABLED);
+        }
+        if (!params.containsKey("cacheMode")) {
+            CacheMode cacheMode = CacheMode.NONE;
+            if (hasConvolutions(configuration)) {
+                long cacheBytes = estimateTrainingBytes(configuration, inputType, JsonParser.getBatchSize(params), CacheMode.HOST)
+                        - estimateTrainingBytes(configuration, inputType, JsonParser.getBatchSize(params), CacheMode.NONE);
+                long freeBytes = Pointer.maxBytes() - Pointer.totalBytes();
+                if (cacheBytes < freeBytes * CACHE_SHARE) {
+                    cacheMode = CacheMode.HOST;
+                }
+                log.info("Caching the convolutions takes an estimated {} MB with {} MB off-heap free: {}",
+                        cacheBytes / 1000000, freeBytes / 1000000, cacheMode);
+            }
+            setCacheMode(configuration, cacheMode);
+        }
+    }
+
+    // The layers copy the cache mode from the global configuration when they are built, so it is set on both
+    private static void setCacheMode(MultiLayerConfiguration configuration, CacheMode cacheMode) {
+        configuration.setCacheMode(cacheMode);
+        for (NeuralNetConfiguration layerConfiguration : configuration.getConfs()) {
+            layerConfiguration.setCacheMode(cacheMode);
+        }
+    }
+
+    private static boolean hasConvolutions(MultiLayerConfiguration configuration) {
+        for (NeuralNetConfiguration layerConfiguration : configuration.getConfs()) {
+            if (layerConfiguration.getLayer() instanceof ConvolutionLayer || layerConfiguration.getLayer() instanceof SubsamplingLayer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long estimateTrainingBytes(MultiLayerConfiguration configuration, InputType inputType, int batchSize,
+                                              CacheMode cacheMode) {
+        NetworkMemoryReport report = configuration.getMemoryReport(inputType);
+        return report.getTotalMemoryBytes(batchSize, MemoryUseMode.TRAINING, cacheMode, configuration.getDataType());
+    }
+
+    // The settings a network runs with and the estimated memory of one training batch, for the job metrics
+    public static Map<String, Object> describe(MultiLayerConfiguration configuration, InputType inputType, int batchSize) {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("trainingWorkspaceMode", configuration.getTrainingWorkspaceMode());
+        description.put("inferenceWorkspaceMode", configuration.getInferenceWorkspaceMode());
+        description.put("cacheMode", configuration.getCacheMode());
+        description.put("dataType", configuration.getDataType());
+        description.put("estimatedTrainingBytes", estimateTrainingBytes(configuration, inputType, batchSize,
+                configuration.getCacheMode()));
+        return description;
+    }
+}
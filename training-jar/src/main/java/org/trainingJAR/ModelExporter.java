@@ -0,0 +1,300 @@
+package org.trainingJAR;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.serializer.NormalizerSerializer;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.BooleanIndexing;
+import org.nd4j.linalg.indexing.conditions.Conditions;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/*
+Exports a trained network as an inference-only artifact: no updater state, the weights of the dense and
+convolution layers pruned by magnitude, and stored as "fp16" (the whole network converted to half precision)
+or "int8" (one byte per weight with a scale per output channel, everything else as floats).
+
+DL4J has no int8 kernels and the CPU backend none for half precision that are faster than floats, so both are
+storage formats: they are expanded back to floats when they are loaded, and a model a quarter or half the size
+to store and transfer then runs like the full one. Pruning alone only makes the zip smaller, zeros compress well.
+*/
+public class ModelExporter {
+
+    private static final String QUANTIZED_BIN = "quantizedCoefficients.bin";
+    private static final byte RAW = 0;
+    private static final byte INT8_DENSE = 1;
+    private static final byte INT8_CONVOLUTION = 2;
+    private static final int EVALUATION_BATCHES = 20;
+
+    private final String quantization;
+    private final double pruning;
+
+    public ModelExporter(String quantization, double pruning) {
+        this.quantization = quantization;
+        this.pruning = pruning;
+    }
+
+    public static ModelExporter fromParams(Map<String, Object> params) {
+        return new ModelExporter(JsonParser.getInferenceQuantization(params), JsonParser.getInferencePruning(params));
+    }
+
+    /*
+    Writes the exported copy of the network to file and compares it, as it loads back from the file, with
+    the full network on the evaluation batches. The network itself is not changed.
+    */
+    public Map<String, Object> export(MultiLayerNetwork network, DataNormalization normalizer, File file,
+                                      List<DataSet> evaluation, boolean isNotRegression) throws IOException {
+        MultiLayerNetwork exported = network.clone();
+        double pruned = pruning > 0 ? prune(exported) : 0;
+        if (quantization.equals("int8")) {
+            writeInt8(exported, normalizer, file);
+        }
+        else {
+            MultiLayerNetwork converted = quantization.equals("fp16") ? exported.convertDataType(DataType.FLOAT16) : exported;
+            ModelSerializer.writeModel(converted, file, false, normalizer);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("quantization", quantization);
+        report.put("pruning", pruning);
+        report.put("prunedWeights", pruned);
+        long trainingBytes = modelBytes(network, normalizer, true);
+        long fullBytes = modelBytes(network, normalizer, false);
+        report.put("trainingBytes", trainingBytes);
+        report.put("fullBytes", fullBytes);
+        report.put("exportedBytes", file.length());
+        report.put("sizeReduction", (double) trainingBytes / file.length());
+        report.put("sizeReductionWithoutUpdater", (double) fullBytes / file.length());
+
+        if (evaluation != null && !evaluation.isEmpty()) {
+            List<DataSet> batches = evaluation.subList(0, Math.min(EVALUATION_BATCHES, evaluation.size()));
+            MultiLayerNetwork restored = restore(file);
+            Map<String, Object> full = evaluate(network, batches, isNotRegression);
+            Map<String, Object> exportedResult = evaluate(restored, batches, isNotRegression);
+            report.put("full", full);
+            report.put("exported", exportedResult);
+            report.put("speedup", (double) full.get("millisPerExample") / (double) exportedResult.get("millisPerExample"));
+            report.put("scoreDelta", (double) exportedResult.get("score") - (double) full.get("score"));
+            if (isNotRegression) {
+                report.put("accuracyDelta", (double) exportedResult.get("accuracy") - (double) full.get("accuracy"));
+            }
+        }
+        return report;
+    }
+
+    // Sets the smallest weights of every dense and convolution layer to zero, returns the fraction of all weights set
+    private double prune(MultiLayerNetwork network) {
+        long total = 0;
+        long zeroed = 0;
+        for (int i = 0; i < network.getnLayers(); i++) {
+            if (!isPrunable(network, i)) {
+                continue;
+            }
+            INDArray weights = network.getParam(i + "_W");
+            double[] magnitudes = Transforms.abs(weights, true).data().asDouble();
+            Arrays.sort(magnitudes);
+            int count = (int) (pruning * magnitudes.length);
+            total += magnitudes.length;
+            if (count == 0) {
+                continue;
+            }
+            // Strictly below the magnitude of the first weight kept, ties are kept
+            BooleanIndexing.replaceWhere(weights, 0.0, Conditions.absLessThan(magnitudes[Math.min(count, magnitudes.length - 1)]));
+            zeroed += weights.length() - weights.neq(0).castTo(DataType.INT32).sumNumber().longValue();
+        }
+        return total == 0 ? 0 : (double) zeroed / total;
+    }
+
+    private static boolean isPrunable(MultiLayerNetwork network, int index) {
+        Layer layer = network.getLayerWiseConfigurations().getConf(index).getLayer();
+        return layer instanceof DenseLayer || layer instanceof ConvolutionLayer;
+    }
+
+    /*
+    The configuration as ModelSerializer writes it, then every parameter in the order of the parameter table:
+    its key, how it is stored, and the values. Int8 weights are stored as rows of one output channel each.
+    */
+    private static void writeInt8(MultiLayerNetwork network, DataNormalization normalizer, File file) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            zip.putNextEntry(new ZipEntry(ModelSerializer.CONFIGURATION_JSON));
+            zip.write(network.getLayerWiseConfigurations().toJson().getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry(QUANTIZED_BIN));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CloseShieldOutputStream(zip)));
+            Map<String, INDArray> paramTable = network.paramTable();
+            out.writeInt(paramTable.size());
+            for (Map.Entry<String, INDArray> entry : paramTable.entrySet()) {
+                String key = entry.getKey();
+                out.writeUTF(key);
+                int layer = Integer.parseInt(key.substring(0, key.indexOf('_')));
+                if (key.endsWith("_W") && isPrunable(network, layer)) {
+                    boolean convolution = network.getLayerWiseConfigurations().getConf(layer).getLayer() instanceof ConvolutionLayer;
+                    out.writeByte(convolution ? INT8_CONVOLUTION : INT8_DENSE);
+                    writeQuantized(out, channelRows(entry.getValue(), convolution));
+                }
+                else {
+                    out.writeByte(RAW);
+                    float[] values = entry.getValue().dup('c').data().asFloat();
+                    out.writeInt(values.length);
+                    for (float value : values) {
+                        out.writeFloat(value);
+                    }
+                }
+            }
+            out.flush();
+            zip.closeEntry();
+
+            if (normalizer != null) {
+                zip.putNextEntry(new ZipEntry(ModelSerializer.NORMALIZER_BIN));
+                NormalizerSerializer.getDefault().write(normalizer, new CloseShieldOutputStream(zip));
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not write the int8 model.", e);
+        }
+    }
+
+    // Dense weights are [nIn, nOut] and convolution weights [nOut, nIn, kH, kW], either way one row per output
+    private static INDArray channelRows(INDArray weights, boolean convolution) {
+        return convolution ? weights.reshape('c', weights.size(0), -1).dup('c') : weights.transpose().dup('c');
+    }
+
+    // Symmetric quantization with the largest magnitude of every row mapped to 127
+    private static void writeQuantized(DataOutputStream out, INDArray rows) throws IOException {
+        INDArray scales = rows.amax(1).divi(127).reshape(rows.rows(), 1);
+        BooleanIndexing.replaceWhere(scales, 1.0, Conditions.equals(0));
+        int[] values = Transforms.round(rows.divColumnVector(scales)).data().asInt();
+
+        out.writeInt(rows.rows());
+        out.writeInt(rows.columns());
+        for (float scale : scales.data().asFloat()) {
+            out.writeFloat(scale);
+        }
+        for (int value : values) {
+            out.writeByte(value);
+        }
+    }
+
+    // Loads a model written by ModelSerializer or an int8 model of this class, without updater state
+    public static MultiLayerNetwork restore(File file) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            ZipEntry quantized = zip.getEntry(QUANTIZED_BIN);
+            if (quantized == null) {
+                MultiLayerNetwork network = ModelSerializer.restoreMultiLayerNetwork(file, false);
+                // The CPU backend has no fast half precision kernels, an fp16 model ran 50x slower than as floats
+                return network.params().dataType() == DataType.FLOAT16 ? network.convertDataType(DataType.FLOAT) : network;
+            }
+
+            String json;
+            try (InputStream in = zip.getInputStream(zip.getEntry(ModelSerializer.CONFIGURATION_JSON))) {
+                json = new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+            }
+            MultiLayerNetwork network = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(json));
+            network.init();
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(zip.getInputStream(quantized)))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    INDArray target = network.getParam(in.readUTF());
+                    byte storage = in.readByte();
+                    if (storage == RAW) {
+                        float[] values = new float[in.readInt()];
+                        for (int j = 0; j < values.length; j++) {
+                            values[j] = in.readFloat();
+                        }
+                        target.assign(Nd4j.create(values, target.shape(), 'c'));
+                    }
+                    else {
+                        INDArray rows = readQuantized(in);
+                        target.assign(storage == INT8_CONVOLUTION ? rows.reshape('c', target.shape()) : rows.transpose());
+                    }
+                }
+            }
+            return network;
+        }
+    }
+
+    private static INDArray readQuantized(DataInputStream in) throws IOException {
+        int rows = in.readInt();
+        int columns = in.readInt();
+        float[] scales = new float[rows];
+        for (int i = 0; i < rows; i++) {
+            scales[i] = in.readFloat();
+        }
+        float[] values = new float[rows * columns];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readByte();
+        }
+        return Nd4j.create(values, new long[]{rows, columns}, 'c').muliColumnVector(Nd4j.create(scales, new long[]{rows, 1}, 'c'));
+    }
+
+    private static long modelBytes(MultiLayerNetwork network, DataNormalization normalizer, boolean saveUpdater) throws IOException {
+        File file = File.createTempFile("model", ".zip");
+        try {
+            ModelSerializer.writeModel(network, file, saveUpdater, normalizer);
+            return file.length();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    // Score, accuracy and time per example on the batches, after one warm-up pass
+    private static Map<String, Object> evaluate(MultiLayerNetwork network, List<DataSet> batches, boolean isNotRegression) {
+        DataType dataType = network.params().dataType();
+        List<DataSet> cast = new ArrayList<>();
+        for (DataSet batch : batches) {
+            cast.add(new DataSet(batch.getFeatures().castTo(dataType), batch.getLabels().castTo(dataType)));
+        }
+
+        network.output(cast.get(0).getFeatures(), false);
+        long examples = 0;
+        long start = System.nanoTime();
+        for (DataSet batch : cast) {
+            network.output(batch.getFeatures(), false);
+            examples += batch.numExamples();
+        }
+        long nanos = System.nanoTime() - start;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("millisPerExample", nanos / 1e6 / examples);
+        result.put("score", DataParser.score(network, cast, null));
+        if (isNotRegression) {
+            Evaluation evaluation = network.evaluate(new ExistingDataSetIterator(cast));
+            result.put("accuracy", evaluation.accuracy());
+        }
+        return result;
+    }
+}
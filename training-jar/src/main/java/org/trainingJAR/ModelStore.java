@@ -0,0 +1,135 @@
+package org.trainingJAR;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+Saves and restores model zips by streaming them to and from S3, without a full copy on disk first.
+Every model that passes through is also kept in a local cache named after its ETag, so restoring
+the same checkpoint again skips the download.
+*/
+public class ModelStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ModelStore.class);
+
+    private final S3Fetcher s3Fetcher;
+    private final File cacheDir;
+
+    public ModelStore(S3Fetcher s3Fetcher, String cachePath) throws IOException {
+        this.s3Fetcher = s3Fetcher;
+        this.cacheDir = new File(cachePath);
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create model cache directory: " + cachePath);
+        }
+    }
+
+    public static String getDefaultCacheDirectory() {
+        return System.getProperty("user.dir") + File.separator + "model-cache";
+    }
+
+    public String save(MultiLayerNetwork network, DataNormalization normalizer, String key, boolean saveUpdater)
+            throws IOException {
+        long start = System.nanoTime();
+        File tmpFile = File.createTempFile("model", ".zip.tmp", cacheDir);
+        S3UploadStream upload = s3Fetcher.openUploadStream(key);
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+            ModelSerializer.writeModel(network, new TeeOutputStream(upload, file), saveUpdater, normalizer);
+        } catch (IOException | RuntimeException e) {
+            // Closing the upload would replace the model under the key with the part written so far
+            upload.abort();
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        }
+        try {
+            upload.close();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        }
+
+        Files.move(tmpFile.toPath(), getCacheFile(upload.getETag()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("Uploaded model to {} in {} s", key, String.format("%.2f", (System.nanoTime() - start) / 1e9));
+        return upload.getETag();
+    }
+
+    public MultiLayerNetwork restore(String key) throws IOException {
+        long start = System.nanoTime();
+        File cacheFile = getCacheFile(s3Fetcher.getETag(key));
+        if (cacheFile.exists()) {
+            log.info("Restoring model {} from the local cache", key);
+            return ModelSerializer.restoreMultiLayerNetwork(cacheFile, true);
+        }
+
+        MultiLayerNetwork network;
+        File tmpFile = File.createTempFile("model", ".zip.tmp", cacheDir);
+        try (InputStream in = new TeeInputStream(s3Fetcher.openStream(key),
+                new BufferedOutputStream(new FileOutputStream(tmpFile)), true)) {
+            network = ModelSerializer.restoreMultiLayerNetwork(in, true);
+            // The zip reader can stop before the end of the archive, the cached copy needs all of it
+            IOUtils.skip(in, Long.MAX_VALUE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        }
+
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        log.info("Restored model {} from s3 in {} s", key, String.format("%.2f", (System.nanoTime() - start) / 1e9));
+        return network;
+    }
+
+    // The local copy of the model, downloaded first if it is not in the cache
+    public File fetch(String key) throws IOException {
+        File cacheFile = getCacheFile(s3Fetcher.getETag(key));
+        if (cacheFile.exists()) {
+            return cacheFile;
+        }
+
+        File tmpFile = File.createTempFile("model", ".zip.tmp", cacheDir);
+        try (InputStream in = s3Fetcher.openStream(key)) {
+            Files.copy(in, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return cacheFile;
+    }
+
+    // Key and ETag of every model under the prefix, in key order
+    public List<String[]> list(String prefix) {
+        List<String[]> models = new ArrayList<>();
+        for (S3ObjectSummary summary : s3Fetcher.listPrefix(prefix)) {
+            models.add(new String[]{summary.getKey(), summary.getETag()});
+        }
+        models.sort(Comparator.comparing(model -> model[0]));
+        return models;
+    }
+
+    public void delete(String key, String eTag) throws IOException {
+        s3Fetcher.deleteObject(key);
+        Files.deleteIfExists(getCacheFile(eTag).toPath());
+    }
+
+    private File getCacheFile(String eTag) {
+        return new File(cacheDir, eTag.replaceAll("[^A-Za-z0-9-]", "") + ".zip");
+    }
+}
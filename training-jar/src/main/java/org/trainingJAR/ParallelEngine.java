@@ -0,0 +1,159 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/*
+Trains on the cores of this machine with a ParallelWrapper, which keeps one copy of the model per worker
+and shares the updates between them in memory. There is no Spark context to start and no DataSet is
+serialized, which makes it the faster choice whenever the data fits on one box.
+*/
+public class ParallelEngine implements TrainingEngine {
+
+    private final MultiLayerNetwork network;
+    private final DataSetIterator iterator;
+    private final Map<String, Object> params;
+    private final List<TrainingListener> listeners;
+    private final int workers;
+    private volatile ParallelWrapper wrapper;
+
+    // Mean of the iteration scores of all workers over the current epoch
+    private final DoubleAdder scoreSum = new DoubleAdder();
+    private final AtomicLong scoreCount = new AtomicLong();
+    private final AtomicLong examples = new AtomicLong();
+    // Updater state of every worker after its last iteration, the workers release theirs when the fit ends
+    private final Map<Model, INDArray> updaterStates = new ConcurrentHashMap<>();
+    private volatile boolean interrupted = false;
+
+    public ParallelEngine(MultiLayerNetwork network, DataSetIterator iterator, Map<String, Object> params) {
+        this.network = network;
+        this.iterator = iterator;
+        this.params = params;
+        this.workers = JsonParser.getLocalWorkers(params);
+
+        TrainingListener scoreListener = new BaseTrainingListener() {
+            @Override
+            public void iterationDone(Model model, int iteration, int epoch) {
+                scoreSum.add(model.score());
+                scoreCount.incrementAndGet();
+                examples.addAndGet(model.batchSize());
+                INDArray state = ((MultiLayerNetwork) model).getUpdater().getStateViewArray();
+                if (state != null) {
+                    updaterStates.computeIfAbsent(model, replica -> state.ulike()).assign(state);
+                }
+                // The wrapper clears its stop flag when a fit starts, so an interrupt is passed on after every iteration
+                if (interrupted) {
+                    wrapper.stopFit();
+                }
+            }
+        };
+        this.listeners = Arrays.asList(TrainingMetrics.get().iterationListener(), scoreListener);
+    }
+
+    private ParallelWrapper createWrapper() {
+        ParallelWrapper wrapper = new ParallelWrapper.Builder<>(network)
+                .workers(workers)
+                .prefetchBuffer(Math.max(JsonParser.getPrefetchBuffer(params), workers))
+                .trainingMode(JsonParser.getParallelTrainingMode(params))
+                .averagingFrequency(JsonParser.getAveragingFrequency(params))
+                .thresholdAlgorithm(JsonParser.getThresholdAlgorithm(params))
+                .residualPostProcessor(JsonParser.getResidualPostProcessor(params))
+                .reportScoreAfterAveraging(true)
+                .build();
+        wrapper.setListeners(listeners);
+        return wrapper;
+    }
+
+    @Override
+    public void fitEpoch() {
+        if (interrupted) {
+            return;
+        }
+        scoreSum.reset();
+        scoreCount.set(0);
+        examples.set(0);
+        if (iterator.resetSupported()) {
+            iterator.reset();
+        }
+        /*
+        A ParallelWrapper only fits once in the shared gradients mode, it shuts its trainers down at the end of the
+        fit and they fail to set up again, so every epoch gets a new one. The new workers copy the network, which
+        only gets the parameters back from the last ones, the updater state is kept by keepUpdaterState.
+        */
+        updaterStates.clear();
+        wrapper = createWrapper();
+        try {
+            wrapper.fit(iterator);
+            keepUpdaterState();
+        } finally {
+            wrapper.shutdown();
+        }
+    }
+
+    // Averages the updater state of the workers into the network
+    private void keepUpdaterState() {
+        INDArray state = network.getUpdater().getStateViewArray();
+        if (state == null || updaterStates.isEmpty()) {
+            return;
+        }
+        INDArray sum = Nd4j.zeros(state.dataType(), state.shape());
+        for (INDArray workerState : updaterStates.values()) {
+            sum.addi(workerState);
+        }
+        state.assign(sum.divi(updaterStates.size()));
+        updaterStates.clear();
+    }
+
+    @Override
+    public void interrupt() {
+        interrupted = true;
+        ParallelWrapper wrapper = this.wrapper;
+        if (wrapper != null) {
+            wrapper.stopFit();
+        }
+    }
+
+    @Override
+    public boolean wasInterrupted() {
+        return interrupted;
+    }
+
+    @Override
+    public double getScore() {
+        long count = scoreCount.get();
+        return count == 0 ? network.score() : scoreSum.sum() / count;
+    }
+
+    @Override
+    public long getExamples() {
+        return examples.get();
+    }
+
+    @Override
+    public MultiLayerNetwork getNetwork() {
+        return network;
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public void close() {
+        // The wrapper of the last epoch is shut down when the epoch ends
+    }
+}
@@ -0,0 +1,197 @@
+package org.trainingJAR;
+
+import org.datavec.api.records.reader.RecordReader;
+import org.datavec.api.split.CollectionInputSplit;
+import org.datavec.image.recordreader.ImageRecordReader;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Decodes and resizes the images of a file list on a pool of threads, one batch per task. Every thread has its
+own ImageRecordReader, the label generator is only read. The batches are handed out in the order of the files
+whichever thread finishes first, and at most 2 batches per thread are decoded ahead of the consumer.
+*/
+public class ParallelImageIterator implements DataSetIterator {
+
+    private final int[] dataShape;
+    private final List<URI> files;
+    private final CSVLabelGenerator labelGenerator;
+    private final int batchSize;
+    private final int threads;
+    private final int numBatches;
+    private final ThreadLocal<RecordReader> readers;
+    private DataSetPreProcessor preProcessor;
+
+    private ExecutorService pool;
+    private final ArrayDeque<Future<DataSet>> pending = new ArrayDeque<>();
+    private int submitted = 0;
+    // The rest of a decoded batch that next(num) did not hand out
+    private DataSet leftover;
+
+    public ParallelImageIterator(int[] dataShape, List<URI> files, CSVLabelGenerator labelGenerator, int batchSize,
+                                 int threads) {
+        this.dataShape = dataShape;
+        this.files = files;
+        this.labelGenerator = labelGenerator;
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.numBatches = (files.size() + batchSize - 1) / batchSize;
+        this.readers = ThreadLocal.withInitial(() -> new ImageRecordReader(dataShape[1], dataShape[0], dataShape[2], labelGenerator));
+    }
+
+    // The pool starts with the first batch asked for, after the preprocessor has been set
+    private void start() {
+        if (pool != null || submitted >= numBatches) {
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-decoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        while (submitted < numBatches && pending.size() < 2 * threads) {
+            submitNext();
+        }
+    }
+
+    private void submitNext() {
+        List<URI> batchFiles = files.subList(submitted * batchSize, Math.min(files.size(), (submitted + 1) * batchSize));
+        DataSetPreProcessor batchPreProcessor = preProcessor;
+        pending.add(pool.submit(() -> {
+            RecordReader reader = readers.get();
+            reader.initialize(new CollectionInputSplit(batchFiles));
+            DataSet dataSet = DataParser.recordIterator(reader, batchSize).next();
+            if (batchPreProcessor != null) {
+                batchPreProcessor.preProcess(dataSet);
+            }
+            return dataSet;
+        }));
+        submitted++;
+    }
+
+    @Override
+    public boolean hasNext() {
+        start();
+        return leftover != null || !pending.isEmpty();
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    // Batches of another size than the decoded ones are cut from and merged out of those
+    @Override
+    public DataSet next(int num) {
+        List<DataSet> parts = new ArrayList<>();
+        int count = 0;
+        while (count < num && hasNext()) {
+            DataSet part = leftover != null ? leftover : nextDecoded();
+            leftover = null;
+            if (count + part.numExamples() > num) {
+                leftover = (DataSet) part.getRange(num - count, part.numExamples());
+                part = (DataSet) part.getRange(0, num - count);
+            }
+            parts.add(part);
+            count += part.numExamples();
+        }
+        if (parts.isEmpty()) {
+            throw new IllegalStateException("No more batches.");
+        }
+        return parts.size() == 1 ? parts.get(0) : DataSet.merge(parts);
+    }
+
+    private DataSet nextDecoded() {
+        start();
+        Future<DataSet> future = pending.poll();
+        if (future == null) {
+            throw new IllegalStateException("No more batches.");
+        }
+        if (submitted < numBatches) {
+            submitNext();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not decode a batch of images.", e.getCause());
+        } finally {
+            if (pending.isEmpty()) {
+                stop();
+            }
+        }
+    }
+
+    private void stop() {
+        for (Future<DataSet> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    @Override
+    public void reset() {
+        stop();
+        submitted = 0;
+        leftover = null;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    // Already decoding ahead, another prefetch thread on top would only copy the batches
+    @Override
+    public boolean asyncSupported() {
+        return false;
+    }
+
+    @Override
+    public int inputColumns() {
+        return dataShape[0] * dataShape[1] * dataShape[2];
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return labelGenerator.getNumLabels();
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return labelGenerator.getLabelNames();
+    }
+}
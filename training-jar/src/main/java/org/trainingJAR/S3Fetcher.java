@@ -2,29 +2,78 @@ package org.trainingJAR;
 
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 public class S3Fetcher {
 
+    private static final Logger log = LoggerFactory.getLogger(S3Fetcher.class);
+
+    private static final int DEFAULT_SYNC_THREADS = 16;
+    private static final long MULTIPART_THRESHOLD = 64L * 1024 * 1024;
+    private static final long PART_SIZE = 16L * 1024 * 1024;
+
     private final AmazonS3 s3client;
 
     private final String bucketName;
 
     public S3Fetcher(final String AWS_ACCESS_KEY, final String AWS_SECRET_KEY, final String BUCKET_NAME, final String REGION) {
+        this(AWS_ACCESS_KEY, AWS_SECRET_KEY, BUCKET_NAME, REGION, null);
+    }
+
+    // A non-empty endpoint points the client at an S3-compatible store such as a local MinIO
+    public S3Fetcher(final String AWS_ACCESS_KEY, final String AWS_SECRET_KEY, final String BUCKET_NAME, final String REGION,
+                     final String ENDPOINT) {
         BasicAWSCredentials credentials = new BasicAWSCredentials(AWS_ACCESS_KEY, AWS_SECRET_KEY);
-        s3client = AmazonS3ClientBuilder
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder
                 .standard()
-                .withCredentials(new AWSStaticCredentialsProvider(credentials))
-                .withRegion(REGION)
-                .build();
+                .withCredentials(new AWSStaticCredentialsProvider(credentials));
+        if (ENDPOINT != null && !ENDPOINT.isEmpty()) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(ENDPOINT, REGION))
+                    .withPathStyleAccessEnabled(true);
+        }
+        else {
+            builder.withRegion(REGION);
+        }
+        s3client = builder.build();
         bucketName = BUCKET_NAME;
     }
 
@@ -42,8 +91,268 @@ public class S3Fetcher {
         return newPath;
     }
 
-    public void putObject(String s3path, String name) {
-        s3client.putObject(new PutObjectRequest(bucketName, name, s3path));
+    public String syncPrefix(String prefix) {
+        return syncPrefix(prefix, DEFAULT_SYNC_THREADS);
+    }
+
+    /*
+    Mirrors every object under the prefix into the working directory and returns the local directory.
+    Objects are downloaded concurrently, large ones as parallel ranged GETs, and objects whose ETag matches
+    the one recorded by the previous sync are skipped. Local files whose objects are gone are deleted.
+    Downloads in progress are kept beside the directory, so the data never has a partial file in it.
+    */
+    public String syncPrefix(String prefix, int threads) {
+        String directoryPrefix = prefix.endsWith("/") ? prefix : prefix + "/";
+        File localDir = new File(System.getProperty("user.dir"), directoryPrefix);
+        File etagFile = new File(localDir.getPath() + ".etags");
+        File partsDir = new File(localDir.getPath() + ".parts");
+        Properties etags = loadEtags(etagFile);
+
+        List<S3ObjectSummary> objects = listPrefix(directoryPrefix);
+        int deleted;
+        try {
+            // What an interrupted sync left behind is downloaded again
+            FileUtils.deleteDirectory(partsDir);
+            deleted = deleteRemoved(localDir, directoryPrefix, objects, etags);
+        } catch (IOException e) {
+            throw new RuntimeException("Something went wrong when syncing the s3 prefix " + prefix + ".", e);
+        }
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong bytes = new AtomicLong();
+        int skipped = 0;
+
+        // Parts get their own pool so that an object task waiting on its parts can never starve them
+        ExecutorService objectPool = Executors.newFixedThreadPool(threads);
+        ExecutorService partPool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (S3ObjectSummary summary : objects) {
+                if (summary.getKey().endsWith("/")) {
+                    continue;
+                }
+                File target = new File(System.getProperty("user.dir"), summary.getKey());
+                if (target.exists() && target.length() == summary.getSize()
+                        && summary.getETag().equals(etags.getProperty(summary.getKey()))) {
+                    skipped++;
+                    continue;
+                }
+
+                futures.add(objectPool.submit(() -> {
+                    long objectStart = System.nanoTime();
+                    downloadObject(summary, target, partsDir, partPool);
+                    latencies.add(System.nanoTime() - objectStart);
+                    bytes.addAndGet(summary.getSize());
+                    etags.setProperty(summary.getKey(), summary.getETag());
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Something went wrong when syncing the s3 prefix " + prefix + ".", e);
+        } finally {
+            objectPool.shutdownNow();
+            partPool.shutdownNow();
+            saveEtags(etags, etagFile);
+        }
+
+        logSync(prefix, latencies, skipped, deleted, bytes.get(), System.nanoTime() - start);
+        return localDir.getPath();
+    }
+
+    // Deletes the local files and ETags of the objects that are no longer under the prefix, returns how many files
+    private static int deleteRemoved(File localDir, String directoryPrefix, List<S3ObjectSummary> objects,
+                                     Properties etags) throws IOException {
+        Set<String> keys = new HashSet<>();
+        for (S3ObjectSummary summary : objects) {
+            keys.add(summary.getKey());
+        }
+        for (String key : etags.stringPropertyNames()) {
+            if (key.startsWith(directoryPrefix) && !keys.contains(key)) {
+                etags.remove(key);
+            }
+        }
+        if (!localDir.exists()) {
+            return 0;
+        }
+
+        List<Path> removed = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(localDir.toPath())) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                String relative = localDir.toPath().relativize(file).toString().replace(File.separatorChar, '/');
+                if (!keys.contains(directoryPrefix + relative)) {
+                    removed.add(file);
+                }
+            });
+        }
+        for (Path file : removed) {
+            Files.delete(file);
+        }
+        return removed.size();
+    }
+
+    // The ETags recorded by the last sync into localPath, by file name
+    public static Map<String, String> getSyncedETags(String localPath) {
+        Properties etags = loadEtags(new File(localPath + ".etags"));
+        Map<String, String> tags = new HashMap<>();
+        for (String key : etags.stringPropertyNames()) {
+            tags.put(key.substring(key.lastIndexOf('/') + 1), etags.getProperty(key));
+        }
+        return tags;
+    }
+
+    public List<S3ObjectSummary> listPrefix(String prefix) {
+        List<S3ObjectSummary> objects = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+        ListObjectsV2Result result;
+        do {
+            result = s3client.listObjectsV2(request);
+            objects.addAll(result.getObjectSummaries());
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+
+        return objects;
+    }
+
+    // Downloads into a temporary file in partsDir first so that an interrupted sync never leaves a truncated file in place
+    private void downloadObject(S3ObjectSummary summary, File target, File partsDir, ExecutorService partPool)
+            throws Exception {
+        File parent = target.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory: " + parent);
+        }
+        if (!partsDir.exists() && !partsDir.mkdirs() && !partsDir.exists()) {
+            throw new IOException("Could not create directory: " + partsDir);
+        }
+        File tmpFile = File.createTempFile("object", ".part", partsDir);
+
+        if (summary.getSize() < MULTIPART_THRESHOLD) {
+            try (S3Object object = s3client.getObject(bucketName, summary.getKey());
+                 InputStream in = object.getObjectContent();
+                 OutputStream out = new FileOutputStream(tmpFile)) {
+                copy(in, out);
+            }
+        }
+        else {
+            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw"); FileChannel channel = raf.getChannel()) {
+                raf.setLength(summary.getSize());
+                List<Future<?>> parts = new ArrayList<>();
+                for (long offset = 0; offset < summary.getSize(); offset += PART_SIZE) {
+                    long partStart = offset;
+                    long partEnd = Math.min(offset + PART_SIZE, summary.getSize()) - 1;
+                    parts.add(partPool.submit(() -> {
+                        downloadRange(summary, partStart, partEnd, channel);
+                        return null;
+                    }));
+                }
+                for (Future<?> part : parts) {
+                    part.get();
+                }
+            }
+        }
+
+        Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void downloadRange(S3ObjectSummary summary, long start, long end, FileChannel channel) throws IOException {
+        // The ETag constraint makes sure every part comes from the same version of the object
+        GetObjectRequest request = new GetObjectRequest(bucketName, summary.getKey())
+                .withRange(start, end)
+                .withMatchingETagConstraint(summary.getETag());
+        S3Object object = s3client.getObject(request);
+        if (object == null) {
+            throw new IOException("Object " + summary.getKey() + " changed during the download.");
+        }
+
+        try (InputStream in = object.getObjectContent()) {
+            byte[] buffer = new byte[1 << 16];
+            long position = start;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, read);
+                while (wrapped.hasRemaining()) {
+                    position += channel.write(wrapped, position);
+                }
+            }
+        } finally {
+            object.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static Properties loadEtags(File etagFile) {
+        Properties etags = new Properties();
+        if (etagFile.exists()) {
+            try (InputStream in = new FileInputStream(etagFile)) {
+                etags.load(in);
+            } catch (IOException e) {
+                log.warn("Could not read {}, every object will be downloaded again", etagFile, e);
+            }
+        }
+        return etags;
+    }
+
+    private static void saveEtags(Properties etags, File etagFile) {
+        File parent = etagFile.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            log.warn("Could not create directory {}", parent);
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(etagFile)) {
+            etags.store(out, null);
+        } catch (IOException e) {
+            log.warn("Could not write {}", etagFile, e);
+        }
+    }
+
+    private static void logSync(String prefix, List<Long> latencies, int skipped, int deleted, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        log.info("Synced s3 prefix {}: {} objects downloaded, {} up to date, {} deleted, {} MB in {} s ({} MB/s)",
+                prefix, sorted.size(), skipped, deleted, String.format("%.1f", bytes / 1e6), String.format("%.2f", seconds),
+                String.format("%.1f", bytes / 1e6 / seconds));
+        if (!sorted.isEmpty()) {
+            log.info("Per-object latency: p50 {} ms, p99 {} ms, max {} ms",
+                    percentile(sorted, 0.5) / 1_000_000, percentile(sorted, 0.99) / 1_000_000,
+                    sorted.get(sorted.size() - 1) / 1_000_000);
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    public String getETag(String key) {
+        return s3client.getObjectMetadata(bucketName, key).getETag();
+    }
+
+    public InputStream openStream(String key) {
+        return s3client.getObject(bucketName, key).getObjectContent();
+    }
+
+    public S3UploadStream openUploadStream(String key) {
+        return new S3UploadStream(s3client, bucketName, key, (int) PART_SIZE);
+    }
+
+    // Uploads the contents of a local file under key
+    public void uploadFile(File file, String key) {
+        s3client.putObject(new PutObjectRequest(bucketName, key, file));
+    }
+
+    public void deleteObject(String key) {
+        s3client.deleteObject(bucketName, key);
     }
 
 }
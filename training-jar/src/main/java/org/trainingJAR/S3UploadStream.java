@@ -0,0 +1,181 @@
+package org.trainingJAR;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+Uploads everything written to it as a multipart S3 object. Full parts are uploaded in the background
+while the next part is being written, with at most MAX_PARTS_IN_FLIGHT buffers held at once.
+Objects smaller than one part are sent with a single put when the stream is closed. Nothing is stored
+under the key until then, a writer that fails part of the way aborts the stream instead of closing it.
+*/
+class S3UploadStream extends OutputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(S3UploadStream.class);
+
+    private static final int MAX_PARTS_IN_FLIGHT = 2;
+
+    private final AmazonS3 s3client;
+    private final String bucketName;
+    private final String key;
+    private final ExecutorService uploader = Executors.newFixedThreadPool(MAX_PARTS_IN_FLIGHT);
+    private final Semaphore inFlight = new Semaphore(MAX_PARTS_IN_FLIGHT);
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int position = 0;
+    private String uploadId;
+    private String eTag;
+    private boolean closed = false;
+
+    S3UploadStream(AmazonS3 s3client, String bucketName, String key, int partSize) {
+        this.s3client = s3client;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == buffer.length) {
+            uploadPart();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (position == buffer.length) {
+                uploadPart();
+            }
+            int count = Math.min(length, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void uploadPart() throws IOException {
+        if (uploadId == null) {
+            uploadId = s3client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+        }
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading " + key, e);
+        }
+
+        byte[] part = buffer;
+        int length = position;
+        int partNumber = parts.size() + 1;
+        parts.add(uploader.submit(() -> {
+            try {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withInputStream(new ByteArrayInputStream(part, 0, length));
+                return s3client.uploadPart(request).getPartETag();
+            } finally {
+                inFlight.release();
+            }
+        }));
+
+        buffer = new byte[buffer.length];
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (uploadId == null) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(position);
+                eTag = s3client.putObject(bucketName, key, new ByteArrayInputStream(buffer, 0, position), metadata).getETag();
+                return;
+            }
+
+            if (position > 0) {
+                uploadPart();
+            }
+            List<PartETag> partETags = new ArrayList<>();
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            eTag = s3client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags)).getETag();
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            abortUpload();
+            throw new IOException("Something went wrong when uploading " + key + ".", e);
+        } finally {
+            uploader.shutdownNow();
+            buffer = null;
+        }
+    }
+
+    // Drops everything written so far, the object under the key stays as it was
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer = null;
+        abortUpload();
+    }
+
+    private void abortUpload() {
+        uploader.shutdownNow();
+        if (uploadId == null) {
+            return;
+        }
+        try {
+            // A part that is still uploading when the upload is aborted would be stored anyway
+            uploader.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            s3client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (RuntimeException e) {
+            log.warn("Could not abort the upload of {}, its parts are left in the bucket", key, e);
+        }
+    }
+
+    // Only available once the stream has been closed
+    String getETag() {
+        return eTag;
+    }
+}
@@ -0,0 +1,132 @@
+package org.trainingJAR;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Sends training scores to the server from a background thread so that reporting never blocks training.
+Scores queued while a request is in flight are coalesced into the next request, and when the queue is
+full the oldest score is dropped, since the latest one is what matters.
+*/
+public class ScoreReporter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ScoreReporter.class);
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final String url;
+    private final CloseableHttpClient httpClient;
+    private final BlockingQueue<Double> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    public ScoreReporter(String serverip) {
+        this.url = "http://" + serverip + "/score";
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(2);
+        connectionManager.setDefaultMaxPerRoute(2);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(TIMEOUT_MILLIS)
+                .setSocketTimeout(TIMEOUT_MILLIS)
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+
+        this.sender = new Thread(this::sendLoop, "score-reporter");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    // Never blocks: under backpressure the oldest pending score makes room for the new one
+    public void report(double score) {
+        while (!queue.offer(score)) {
+            if (queue.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void sendLoop() {
+        List<Double> scores = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Double score = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (score == null) {
+                    continue;
+                }
+                scores.add(score);
+                queue.drainTo(scores);
+                send(scores);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Could not send {} score updates to {}", scores.size(), url, e);
+            } finally {
+                scores.clear();
+            }
+        }
+    }
+
+    private void send(List<Double> scores) throws IOException {
+        // "data" keeps the latest score for the existing endpoint, "scores" carries everything coalesced into it
+        Map<String, Object> json = new HashMap<>();
+        json.put("data", scores.get(scores.size() - 1));
+        json.put("scores", scores);
+        json.put("dropped", dropped.getAndSet(0));
+
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setEntity(new StringEntity(objectMapper.writeValueAsString(json), ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            // Consuming the entity returns the connection to the pool
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("Failed : HTTP error code : " + response.getStatusLine().getStatusCode());
+            }
+        }
+    }
+
+    // Gives the sender a moment to flush what is still queued, then releases the connections
+    @Override
+    public void close() {
+        running = false;
+        try {
+            sender.join(TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sender.interrupt();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("Could not close the score reporter client", e);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.trainingJAR;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.spark.api.TrainingMaster;
+import org.deeplearning4j.spark.impl.multilayer.SparkDl4jMultiLayer;
+import org.deeplearning4j.spark.parameterserver.training.SharedTrainingMaster;
+import org.nd4j.linalg.dataset.DataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Trains through SparkDl4jMultiLayer with gradient sharing, from DataSets in memory or exported to paths.
+All jobs of the process share one Spark context with the fair scheduler, every job in a pool of its own.
+*/
+public class SparkEngine implements TrainingEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(SparkEngine.class);
+
+    private static JavaSparkContext sharedContext;
+
+    /*
+    The gradient sharing transport of SharedTrainingMaster is a singleton of the JVM, so two jobs can never
+    fit at the same time. The fair lock hands the epochs out to the waiting jobs in turn.
+    */
+    private static final ReentrantLock FIT_LOCK = new ReentrantLock(true);
+
+    private final String pool;
+    private final JavaSparkContext sc;
+    private final TrainingMetrics metrics;
+    private final SparkDl4jMultiLayer sparkNetwork;
+    private final JavaRDD<DataSet> dataRDD;
+    private final JavaRDD<String> pathRDD;
+    private final boolean collectTrainingStats;
+    private final int workersPerNode;
+    private final long examples;
+    private final SparkListener interruptListener;
+    private volatile boolean interrupted = false;
+
+    public SparkEngine(String pool, MultiLayerNetwork network, List<DataSet> data, List<String> paths,
+                       DataStorage storage, Map<String, Object> params) {
+        this.pool = pool;
+        this.sc = getSharedContext();
+        this.metrics = TrainingMetrics.get();
+
+        // Compact batches go to the executors as they are stored and are expanded there
+        dataRDD = data != null ? sc.parallelize(data).map(storage::expand) : null;
+        pathRDD = paths != null ? sc.parallelize(paths) : null;
+        // Exported batches are not opened on the driver, their count is the one from the export
+        examples = data != null ? data.stream().mapToLong(DataSet::numExamples).sum() : metrics.getDataExamples();
+
+        collectTrainingStats = JsonParser.collectTrainingStats(params);
+        workersPerNode = JsonParser.getWorkersPerNode(params);
+        sparkNetwork = new SparkDl4jMultiLayer(sc, network, createTrainingMaster(params, collectTrainingStats));
+        sparkNetwork.setCollectTrainingStats(collectTrainingStats);
+        sparkNetwork.setListeners(Collections.singletonList(metrics.iterationListener()));
+
+        // A fit runs several Spark jobs, those of this engine that start after an interrupt are cancelled right away
+        interruptListener = new SparkListener() {
+            @Override
+            public void onJobStart(SparkListenerJobStart jobStart) {
+                if (interrupted && jobStart.properties() != null
+                        && pool.equals(jobStart.properties().getProperty("spark.jobGroup.id"))) {
+                    sc.sc().cancelJob(jobStart.jobId());
+                }
+            }
+        };
+        sc.sc().addSparkListener(interruptListener);
+    }
+
+    public static synchronized JavaSparkContext getSharedContext() {
+        if (sharedContext == null) {
+            SparkConf sparkConf = createSparkConf("DL4J Spark Training");
+            sparkConf.setIfMissing("spark.scheduler.mode", "FAIR");
+            sharedContext = new JavaSparkContext(sparkConf);
+            sharedContext.sc().addSparkListener(TrainingMetrics.sparkListener());
+        }
+        return sharedContext;
+    }
+
+    public static synchronized void stopSharedContext() {
+        if (sharedContext != null) {
+            sharedContext.stop();
+            sharedContext = null;
+        }
+    }
+
+    @Override
+    public void fitEpoch() {
+        // Local properties belong to the calling thread, the Spark jobs of this fit run in the pool of the job
+        sc.setLocalProperty("spark.scheduler.pool", pool);
+        /*
+        The job group lets interrupt cancel the jobs of this fit. The tasks are not interrupted, a killed task stops
+        at the next minibatch its partition iterator hands out.
+        */
+        sc.setJobGroup(pool, "Training " + pool, false);
+        FIT_LOCK.lock();
+        try {
+            if (interrupted) {
+                return;
+            }
+            if (pathRDD != null) {
+                sparkNetwork.fitPaths(pathRDD);
+            }
+            else {
+                sparkNetwork.fit(dataRDD);
+            }
+        } catch (Exception e) {
+            if (!interrupted) {
+                throw e;
+            }
+            // The network on the driver keeps the parameters it had before this epoch
+            log.info("Cancelled the Spark jobs of {}: {}", pool, e.toString());
+            return;
+        } finally {
+            FIT_LOCK.unlock();
+        }
+        if (collectTrainingStats) {
+            metrics.recordTrainingStats(sparkNetwork.getSparkTrainingStats());
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        interrupted = true;
+        sc.cancelJobGroup(pool);
+    }
+
+    @Override
+    public boolean wasInterrupted() {
+        return interrupted;
+    }
+
+    @Override
+    public double getScore() {
+        return sparkNetwork.getScore();
+    }
+
+    @Override
+    public long getExamples() {
+        return examples;
+    }
+
+    @Override
+    public MultiLayerNetwork getNetwork() {
+        return sparkNetwork.getNetwork();
+    }
+
+    @Override
+    public int getWorkers() {
+        return getExecutorCount(sc) * workersPerNode;
+    }
+
+    // The shared context stays up for the next job
+    @Override
+    public void close() {
+        sc.sc().removeSparkListener(interruptListener);
+        sc.clearJobGroup();
+        sc.setLocalProperty("spark.scheduler.pool", null);
+    }
+
+    public static SparkConf createSparkConf(String appName) {
+        SparkConf sparkConf = new SparkConf();
+        sparkConf.setAppName(appName);
+        // spark-submit passes --master as spark.master, otherwise SPARK_MASTER is used and then a local master
+        if (!sparkConf.contains("spark.master")) {
+            String master = System.getenv("SPARK_MASTER");
+            sparkConf.setMaster(master != null && !master.isEmpty() ? master : "local[*]");
+        }
+        // local-cluster executors are separate JVMs on this machine, they can load classes from the driver's classpath
+        if (sparkConf.get("spark.master").startsWith("local-cluster") && !sparkConf.contains("spark.executor.extraClassPath")) {
+            sparkConf.set("spark.executor.extraClassPath", System.getProperty("java.class.path"));
+        }
+        return sparkConf;
+    }
+
+    public static TrainingMaster createTrainingMaster(Map<String, Object> params, boolean collectTrainingStats) {
+        // Every DataSet in the RDD holds one batch
+        return new SharedTrainingMaster.Builder(JsonParser.getBatchSize(params))
+                .batchSizePerWorker(JsonParser.getBatchSizePerWorker(params))
+                .workersPerNode(JsonParser.getWorkersPerNode(params))
+                .thresholdAlgorithm(JsonParser.getThresholdAlgorithm(params))
+                .residualPostProcessor(JsonParser.getResidualPostProcessor(params))
+                .collectTrainingStats(collectTrainingStats)
+                .build();
+    }
+
+    // The driver is listed among the executors, except in local mode where it is the only one
+    public static int getExecutorCount(JavaSparkContext sc) {
+        int executors = sc.sc().getExecutorMemoryStatus().size();
+        return sc.isLocal() ? executors : Math.max(1, executors - 1);
+    }
+}
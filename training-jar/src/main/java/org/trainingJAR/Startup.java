@@ -0,0 +1,114 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Runs the startup stages that do not depend on each other at the same time, S3 downloads next to the ND4J, DL4J
+and Spark initialization, and records how long every stage took under startup in the metrics.
+*/
+public class Startup {
+
+    private static final Logger log = LoggerFactory.getLogger(Startup.class);
+
+    private static final ExecutorService POOL;
+
+    static {
+        AtomicInteger count = new AtomicInteger();
+        POOL = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "startup-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Runs a stage on its own thread, its duration goes to the metrics under stage
+    public static <T> CompletableFuture<T> async(TrainingMetrics metrics, String stage, Callable<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        POOL.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                future.complete(work.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                record(metrics, stage, System.nanoTime() - start);
+            }
+        });
+        return future;
+    }
+
+    public static void record(TrainingMetrics metrics, String stage, long nanos) {
+        metrics.recordStartupStage(stage, nanos);
+        log.info("Startup stage {} took {} s", stage, String.format("%.2f", nanos / 1e9));
+    }
+
+    // Waits for a stage and throws what the stage threw
+    public static <T> T join(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /*
+    Loads the ND4J native backend and fits a small network once, so that the native libraries, the BLAS threads
+    and the classes of a training step are ready by the time the first job has its data.
+    */
+    public static void warmUp() {
+        MultiLayerConfiguration configuration = new NeuralNetConfiguration.Builder()
+                .seed(0)
+                .updater(new Adam())
+                .list()
+                .layer(new DenseLayer.Builder().nIn(16).nOut(16).activation(Activation.RELU).build())
+                .layer(new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT).nIn(16).nOut(4)
+                        .activation(Activation.SOFTMAX).build())
+                .build();
+        MultiLayerNetwork network = new MultiLayerNetwork(configuration);
+        network.init();
+
+        INDArray labels = Nd4j.zeros(8, 4);
+        for (int i = 0; i < 8; i++) {
+            labels.putScalar(i, i % 4, 1);
+        }
+        DataSet dataSet = new DataSet(Nd4j.rand(8, 16), labels);
+        for (int i = 0; i < 3; i++) {
+            network.fit(dataSet);
+        }
+        network.output(dataSet.getFeatures());
+    }
+}
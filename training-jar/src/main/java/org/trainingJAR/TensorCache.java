@@ -0,0 +1,281 @@
+package org.trainingJAR;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/*
+Binary cache of decoded images. Every example is stored as one byte per pixel followed by its label
+vector as floats, so later runs read the file through memory-mapped buffers instead of decoding the images.
+The reads are not zero-copy, the bytes of a batch are widened into a float array that is then copied into ND4J.
+
+Layout: a 64 byte header (magic, version, numExamples, featureRank, featureShape..., labelSize), then the records.
+*/
+public class TensorCache {
+
+    private static final Logger log = LoggerFactory.getLogger(TensorCache.class);
+
+    private static final int MAGIC = 0x54434348;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private final int numExamples;
+    private final long[] featureShape;
+    private final int featureSize;
+    private final int labelSize;
+    private final int recordSize;
+    private final int recordsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    public TensorCache(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE));
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a tensor cache file: " + file);
+            }
+            numExamples = header.getInt();
+            featureShape = new long[header.getInt()];
+            int size = 1;
+            for (int i = 0; i < featureShape.length; i++) {
+                featureShape[i] = header.getInt();
+                size *= featureShape[i];
+            }
+            featureSize = size;
+            labelSize = header.getInt();
+            recordSize = featureSize + labelSize * Float.BYTES;
+
+            // A single mapping is limited to 2GB, so larger caches are mapped in whole-record segments
+            long offset = HEADER_SIZE;
+            recordsPerSegment = Math.max(1, Integer.MAX_VALUE / recordSize);
+            int numSegments = (numExamples + recordsPerSegment - 1) / recordsPerSegment;
+            segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                int records = Math.min(recordsPerSegment, numExamples - i * recordsPerSegment);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) records * recordSize);
+                offset += (long) records * recordSize;
+            }
+        }
+    }
+
+    /*
+    labelTag identifies the label file the same way as the data files, see DataParser.getFileTag. The same labels
+    read for classification or regression give different label vectors, so the mode is part of the key too.
+    */
+    public static File getCacheFile(String cachePath, String dataHash, int[] dataShape, String labelTag,
+                                    boolean isNotRegression) {
+        String labelHash = DataParser.hash(Collections.singletonList(labelTag)).substring(0, 16);
+        String key = dataHash + "-" + dataShape[0] + "x" + dataShape[1] + "x" + dataShape[2] + "-" + labelHash
+                + (isNotRegression ? "-classes" : "-targets");
+        return new File(cachePath, "tensors-" + key + ".bin");
+    }
+
+    /*
+    Consumes an iterator of unnormalized images and writes them to the cache file. The file is written under
+    a temporary name first so that an interrupted run never leaves a partial cache behind.
+    */
+    public static void write(DataSetIterator iterator, File file) throws IOException {
+        write(iterator, file, true);
+    }
+
+    // Without labels the records only hold the pixels, labelSize is 0
+    public static void write(DataSetIterator iterator, File file, boolean withLabels) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        long start = System.nanoTime();
+        int count = 0;
+        long[] featureShape = null;
+        int labelSize = 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.setLength(0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(raf.getFD()), 1 << 16));
+            // Header is filled in once the number of examples is known
+            out.write(new byte[HEADER_SIZE]);
+
+            while (iterator.hasNext()) {
+                DataSet dataSet = iterator.next();
+                INDArray features = dataSet.getFeatures();
+                INDArray labels = dataSet.getLabels();
+                if (featureShape == null) {
+                    featureShape = Arrays.copyOfRange(features.shape(), 1, features.rank());
+                    labelSize = withLabels ? (int) labels.size(1) : 0;
+                }
+
+                float[] pixels = features.dup('c').data().asFloat();
+                float[] labelValues = withLabels ? labels.dup('c').data().asFloat() : new float[0];
+                int featureSize = pixels.length / dataSet.numExamples();
+                for (int i = 0; i < dataSet.numExamples(); i++) {
+                    for (int j = i * featureSize; j < (i + 1) * featureSize; j++) {
+                        out.writeByte(Math.max(0, Math.min(255, Math.round(pixels[j]))));
+                    }
+                    for (int j = i * labelSize; j < (i + 1) * labelSize; j++) {
+                        out.writeFloat(labelValues[j]);
+                    }
+                    count++;
+                }
+            }
+            out.flush();
+
+            if (featureShape == null) {
+                throw new IOException("Cannot cache an empty dataset");
+            }
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(count);
+            raf.writeInt(featureShape.length);
+            for (long dim : featureShape) {
+                raf.writeInt((int) dim);
+            }
+            raf.writeInt(labelSize);
+
+            if (raf.getFilePointer() > HEADER_SIZE) {
+                throw new IOException("Feature shape too large for the cache header");
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        log.info("Cached {} decoded examples to {} in {} s", count, file,
+                String.format("%.2f", (System.nanoTime() - start) / 1e9));
+    }
+
+    public int numExamples() {
+        return numExamples;
+    }
+
+    public long[] featureShape() {
+        return featureShape.clone();
+    }
+
+    public DataSetIterator iterator(int batchSize) {
+        return new CachedDataSetIterator(batchSize);
+    }
+
+    private ByteBuffer record(int index) {
+        ByteBuffer segment = segments[index / recordsPerSegment].duplicate();
+        segment.position((index % recordsPerSegment) * recordSize);
+        return segment;
+    }
+
+    // Reads the pixels of one example into features from offset on, returns the buffer positioned at its labels
+    ByteBuffer readFeatures(int index, float[] features, int offset) {
+        ByteBuffer record = record(index);
+        for (int j = 0; j < featureSize; j++) {
+            features[offset + j] = record.get() & 0xFF;
+        }
+        return record;
+    }
+
+    private class CachedDataSetIterator implements DataSetIterator {
+
+        private final int batchSize;
+        private int cursor = 0;
+        private DataSetPreProcessor preProcessor;
+
+        CachedDataSetIterator(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public DataSet next(int num) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int count = Math.min(num, numExamples - cursor);
+            float[] features = new float[count * featureSize];
+            float[] labels = new float[count * labelSize];
+
+            for (int i = 0; i < count; i++) {
+                ByteBuffer record = readFeatures(cursor + i, features, i * featureSize);
+                record.asFloatBuffer().get(labels, i * labelSize, labelSize);
+            }
+            cursor += count;
+
+            long[] shape = new long[featureShape.length + 1];
+            shape[0] = count;
+            System.arraycopy(featureShape, 0, shape, 1, featureShape.length);
+            DataSet dataSet = new DataSet(Nd4j.create(features, shape, 'c'),
+                    Nd4j.create(labels, new long[]{count, labelSize}, 'c'));
+            if (preProcessor != null) {
+                preProcessor.preProcess(dataSet);
+            }
+
+            return dataSet;
+        }
+
+        @Override
+        public int inputColumns() {
+            return featureSize;
+        }
+
+        @Override
+        public int totalOutcomes() {
+            return labelSize;
+        }
+
+        @Override
+        public boolean resetSupported() {
+            return true;
+        }
+
+        @Override
+        public boolean asyncSupported() {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            cursor = 0;
+        }
+
+        @Override
+        public int batch() {
+            return batchSize;
+        }
+
+        @Override
+        public void setPreProcessor(DataSetPreProcessor preProcessor) {
+            this.preProcessor = preProcessor;
+        }
+
+        @Override
+        public DataSetPreProcessor getPreProcessor() {
+            return preProcessor;
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < numExamples;
+        }
+
+        @Override
+        public DataSet next() {
+            return next(batchSize);
+        }
+    }
+}
@@ -1,16 +1,17 @@
 package org.trainingJAR;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.protocol.HTTP;
-import org.json.JSONObject;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/training")
@@ -18,31 +19,96 @@ public class TrainingController {
 
     @PostMapping("/stop")
     public String stopTraining() {
-        Main.keepTraining = false;
+        JobManager.get().stopAll();
         return "Training stopped";
     }
 
-    public static void sendUpdate(double updateData, String serverip) {
-        try {
-            HttpClient httpClient = HttpClients.createDefault();
-            HttpPost httpPost = new HttpPost("http://" + serverip + "/score");
+    @GetMapping("/metrics")
+    public Map<String, Object> getMetrics() {
+        return TrainingMetrics.getProcess().snapshot();
+    }
 
-            JSONObject json = new JSONObject();
-            json.put("data", updateData);
+    /*
+    Body: {"dataPath": ..., "configPath": ..., "serverIp": ..., "newTraining": false, "networkPath": ..., "outputPath": ...}
+    with the same meaning as the command line arguments. outputPath defaults to models/<job id>.zip
+    An optional "search": {"space": {..}, "trials": .., ...} makes it a hyperparameter search, see HyperparameterSearch
+    */
+    @PostMapping("/jobs")
+    public Map<String, Object> submitJob(@RequestBody Map<String, Object> body) {
+        String dataPath = (String) body.get("dataPath");
+        String configPath = (String) body.get("configPath");
+        String serverIp = (String) body.get("serverIp");
+        if (dataPath == null || configPath == null || serverIp == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "dataPath, configPath and serverIp are required");
+        }
+        boolean newTraining = Boolean.TRUE.equals(body.get("newTraining"));
+        String networkPath = (String) body.get("networkPath");
+        if (newTraining && networkPath == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "networkPath is required to continue training");
+        }
 
-            StringEntity se = new StringEntity(json.toString());
-            se.setContentType(new BasicHeader(HTTP.CONTENT_TYPE, "application/json"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> search = (Map<String, Object>) body.get("search");
+        if (search != null) {
+            try {
+                HyperparameterSearch.validateSpec(search);
+            } catch (IllegalArgumentException | ClassCastException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+            }
+        }
 
-            httpPost.setEntity(se);
-            HttpResponse response = httpClient.execute(httpPost);
+        return JobManager.get().submit(dataPath, configPath, newTraining, networkPath, serverIp,
+                (String) body.get("outputPath"), search).describe();
+    }
 
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new RuntimeException("Failed : HTTP error code : "
-                        + response.getStatusLine().getStatusCode());
-            }
+    @GetMapping("/jobs")
+    public List<Map<String, Object>> listJobs() {
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        for (TrainingJob job : JobManager.get().list()) {
+            jobs.add(job.describe());
+        }
+        return jobs;
+    }
+
+    @GetMapping("/jobs/{id}")
+    public Map<String, Object> getJob(@PathVariable String id) {
+        TrainingJob job = findJob(id);
+        Map<String, Object> description = job.describe();
+        description.put("metrics", job.getMetrics().snapshot());
+        return description;
+    }
+
+    @PostMapping("/jobs/{id}/stop")
+    public Map<String, Object> stopJob(@PathVariable String id) {
+        TrainingJob job = findJob(id);
+        job.stop();
+        return job.describe();
+    }
+
+    // Ends the current epoch after the iteration in progress and frees the engine until the job is resumed
+    @PostMapping("/jobs/{id}/pause")
+    public Map<String, Object> pauseJob(@PathVariable String id) {
+        TrainingJob job = findJob(id);
+        if (!job.pause()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Job " + id + " is " + job.getState() + ", only a running training can be paused");
+        }
+        return job.describe();
+    }
+
+    @PostMapping("/jobs/{id}/resume")
+    public Map<String, Object> resumeJob(@PathVariable String id) {
+        TrainingJob job = findJob(id);
+        if (!job.resume()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Job " + id + " is " + job.getState() + ", not paused");
+        }
+        return job.describe();
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static TrainingJob findJob(String id) {
+        TrainingJob job = JobManager.get().getJob(id);
+        if (job == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No training job " + id);
         }
+        return job;
     }
 }
@@ -0,0 +1,34 @@
+package org.trainingJAR;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/*
+Runs training epochs for one network. The Spark engine spreads the work over a cluster, the parallel
+engine trains on the cores of this machine without going through Spark.
+*/
+public interface TrainingEngine extends AutoCloseable {
+
+    void fitEpoch();
+
+    /*
+    Ends the epoch in progress after the iteration running now, or the next one before it starts. An interrupted
+    engine fits nothing more, the network keeps the parameters and updater state it had at that point.
+    */
+    void interrupt();
+
+    boolean wasInterrupted();
+
+    // Score of the last epoch on the training data
+    double getScore();
+
+    // Examples fitted in the last epoch
+    long getExamples();
+
+    // The network holding the latest parameters
+    MultiLayerNetwork getNetwork();
+
+    int getWorkers();
+
+    @Override
+    void close();
+}
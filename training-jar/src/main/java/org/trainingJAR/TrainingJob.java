@@ -0,0 +1,487 @@
+package org.trainingJAR;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/*
+One training run, from downloading its data and network to saving the trained model. Everything a run
+needs lives in the job, so that several of them can train in the same JVM.
+*/
+public class TrainingJob implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(TrainingJob.class);
+
+    public enum State { QUEUED, RUNNING, PAUSED, STOPPING, FINISHED, CANCELLED, FAILED }
+
+    private final String id;
+    private final String dataKey;
+    private final String configKey;
+    private final boolean newTraining;
+    private final String networkPath;
+    private final String serverIp;
+    private final String outputPath;
+    private final Map<String, Object> search;
+    private final S3Fetcher s3Fetcher;
+    private final JobManager jobManager;
+    private final TrainingMetrics metrics;
+
+    private volatile State state = State.QUEUED;
+    private volatile boolean keepTraining = true;
+    private volatile boolean paused = false;
+    // The engine fitting right now, for stop and pause to interrupt
+    private volatile TrainingEngine engine;
+    private final Object pauseLock = new Object();
+    private volatile int epochs = 0;
+    private volatile double lastScore = Double.NaN;
+    private volatile String error;
+    private volatile List<Map<String, Object>> searchResults;
+    private volatile Map<String, Object> exportReport;
+    private final Instant submitted = Instant.now();
+    private volatile Instant started;
+    private volatile Instant finished;
+
+    // Set up by prepareData
+    private Map<String, Object> params;
+    private DataNormalization normalizer;
+    private DataStorage storage;
+    private DataSetIterator dataIterator;
+    private List<DataSet> data;
+    private List<String> paths;
+    private List<DataSet> validationData;
+    private List<String> validationPaths;
+    // Created or downloaded while the data is prepared
+    private CompletableFuture<MultiLayerNetwork> networkFuture;
+
+    public TrainingJob(String id, String dataKey, String configKey, boolean newTraining, String networkPath,
+                       String serverIp, String outputPath, Map<String, Object> search, S3Fetcher s3Fetcher,
+                       JobManager jobManager) {
+        this.id = id;
+        this.dataKey = dataKey;
+        this.configKey = configKey;
+        this.newTraining = newTraining;
+        this.networkPath = networkPath;
+        this.serverIp = serverIp;
+        this.outputPath = outputPath;
+        this.search = search;
+        this.s3Fetcher = s3Fetcher;
+        this.jobManager = jobManager;
+        this.metrics = TrainingMetrics.forJob(id);
+    }
+
+    @Override
+    public void run() {
+        if (!keepTraining) {
+            state = State.CANCELLED;
+            finished = Instant.now();
+            jobManager.finished(this);
+            return;
+        }
+        state = State.RUNNING;
+        started = Instant.now();
+        metrics.markStarted();
+        TrainingMetrics.setCurrent(metrics);
+        try {
+            // Jobs on the same data wait for each other here instead of syncing and caching the same files at once
+            synchronized (jobManager.lockFor("data:" + dataKey)) {
+                prepareData();
+            }
+            if (search != null) {
+                runSearch();
+            }
+            else {
+                train();
+            }
+            state = State.FINISHED;
+        } catch (Exception e) {
+            log.error("Training job {} failed", id, e);
+            error = e.toString();
+            state = State.FAILED;
+        } finally {
+            TrainingMetrics.setCurrent(null);
+            releaseData();
+            finished = Instant.now();
+            jobManager.finished(this);
+        }
+    }
+
+    // A finished job is still listed, it only keeps what describe reports
+    private void releaseData() {
+        normalizer = null;
+        storage = null;
+        dataIterator = null;
+        data = null;
+        paths = null;
+        validationData = null;
+        validationPaths = null;
+        networkFuture = null;
+    }
+
+    /*
+    The data is synced while the config is downloaded, and the network is created, or downloaded when training
+    continues, while the data is decoded. A Spark job starts the shared context at the same time.
+    */
+    private void prepareData() throws IOException, InterruptedException {
+        CompletableFuture<String> dataSync = Startup.async(metrics, "dataSync", () -> s3Fetcher.syncPrefix(dataKey));
+
+        long start = System.nanoTime();
+        try {
+            String configPath;
+            synchronized (jobManager.lockFor("config:" + configKey)) {
+                configPath = s3Fetcher.downloadPath(configKey);
+            }
+            params = JsonParser.getNetworkMap(configPath);
+        } catch (RuntimeException e) {
+            // The sync runs under the data lock of this job, it has to end before the lock is released
+            dataSync.handle((path, error) -> path).join();
+            throw e;
+        }
+        // Search trials are compared on held out batches
+        if (search != null && JsonParser.getValidationSplit(params) <= 0) {
+            params.put("validationSplit", 0.2);
+        }
+        Startup.record(metrics, "config", System.nanoTime() - start);
+
+        if (search == null) {
+            Map<String, Object> networkParams = params;
+            networkFuture = !newTraining
+                    ? Startup.async(metrics, "networkInit", () -> {
+                        MultiLayerNetwork network = new MultiLayerNetwork(JsonParser.parseNetworkFile(networkParams));
+                        network.init();
+                        return network;
+                    })
+                    : Startup.async(metrics, "networkRestore",
+                        () -> new ModelStore(s3Fetcher, ModelStore.getDefaultCacheDirectory()).restore(networkPath));
+            if (JsonParser.getEngine(params).equals("spark")) {
+                Startup.async(metrics, "sparkContext", SparkEngine::getSharedContext);
+            }
+        }
+
+        String dataPath = Startup.join(dataSync);
+        start = System.nanoTime();
+        boolean isNotRegression = JsonParser.isNotRegression(params);
+        int[] dataShape = JsonParser.getDataShape(params);
+
+        List<URI> files = DataParser.readFiles(dataPath, "csvfile.txt");
+        String cachePath = DataParser.getCacheDirectory(dataPath);
+        Map<String, String> tags = S3Fetcher.getSyncedETags(dataPath);
+        String dataHash = DataParser.computeDataHash(files, tags);
+        normalizer = DataParser.loadOrCreateNormalizer(cachePath, dataHash);
+        storage = DataStorage.fromParams(params, normalizer);
+
+        // Either keep the DataSet objects in memory or export them and train from their paths
+        // A fraction of the batches is held out on the driver to score each epoch
+        // The parallel engine can read straight from the iterator unless batches have to be held out
+        double validationSplit = JsonParser.getValidationSplit(params);
+        boolean collect = !JsonParser.exportData(params)
+                && (JsonParser.getEngine(params).equals("spark") || validationSplit > 0 || search != null);
+        // Batches collected in memory may be normalized only when they are used, see DataStorage
+        DataNormalization iteratorNormalizer = collect ? storage.getIteratorNormalizer() : normalizer;
+
+        if (JsonParser.useDataManifest(params)) {
+            // Only the files that are new or changed since the last job on this data are labeled and decoded
+            DataManifest manifest = DataManifest.update(DataManifest.getDirectory(cachePath, dataShape), dataPath,
+                    "csvfile.txt", files, dataShape, isNotRegression, tags,
+                    JsonParser.getBatchSize(params), JsonParser.getDecodeThreads(params));
+            DataSetIterator served = manifest.iterator(files, JsonParser.getBatchSize(params), JsonParser.getShuffleSeed(params));
+            dataIterator = DataParser.createDataSetIterator(served, JsonParser.getPrefetchBuffer(params), iteratorNormalizer);
+        }
+        else {
+            CSVLabelGenerator labelGenerator = new CSVLabelGenerator(isNotRegression, dataPath, "csvfile.txt");
+            DataSetIterator decoder = DataParser.createDecoder(dataShape, files, labelGenerator, JsonParser.getBatchSize(params),
+                    JsonParser.getDecodeThreads(params), JsonParser.getShuffleSeed(params));
+            if (JsonParser.cacheTensors(params)) {
+                String labelTag = DataParser.getFileTag(new File(dataPath, "csvfile.txt"), tags);
+                File cacheFile = TensorCache.getCacheFile(cachePath, dataHash, dataShape, labelTag, isNotRegression);
+                dataIterator = DataParser.createCachedDataSetIterator(cacheFile, decoder, JsonParser.getBatchSize(params),
+                        JsonParser.getPrefetchBuffer(params), iteratorNormalizer);
+            }
+            else {
+                dataIterator = DataParser.createDataSetIterator(decoder, JsonParser.getPrefetchBuffer(params), iteratorNormalizer);
+            }
+        }
+
+        if (JsonParser.exportData(params)) {
+            paths = DataParser.exportDataSets(dataIterator, JsonParser.getExportDirectory(params, cachePath));
+            if (validationSplit > 0) {
+                validationPaths = DataParser.splitValidation(paths, validationSplit, dataHash.hashCode());
+            }
+        }
+        else if (collect) {
+            data = DataParser.collectDataSets(dataIterator, storage);
+            if (validationSplit > 0) {
+                validationData = DataParser.splitValidation(data, validationSplit, dataHash.hashCode());
+            }
+        }
+        Startup.record(metrics, "dataPrepare", System.nanoTime() - start);
+    }
+
+    private void train() throws IOException, InterruptedException {
+        boolean validate = validationData != null && !validationData.isEmpty()
+                || validationPaths != null && !validationPaths.isEmpty();
+
+        MultiLayerNetwork network;
+        ModelStore modelStore = new ModelStore(s3Fetcher, ModelStore.getDefaultCacheDirectory());
+
+        network = Startup.join(networkFuture);
+        metrics.setNumParams(network.numParams());
+        metrics.recordMemoryProfile(MemoryProfile.describe(network.getLayerWiseConfigurations(),
+                JsonParser.getInputType(params), JsonParser.getBatchSize(params)));
+
+        long start = System.nanoTime();
+        startEngine(network);
+        Startup.record(metrics, "engine", System.nanoTime() - start);
+
+        ScoreReporter scoreReporter = new ScoreReporter(serverIp);
+        // A network trained before goes on counting its epochs, so its checkpoints are not written over
+        int startEpoch = network.getLayerWiseConfigurations().getEpochCount();
+        Checkpointer checkpointer = Checkpointer.fromParams(params, modelStore, normalizer, outputPath, startEpoch);
+        EarlyStopping earlyStopping = EarlyStopping.fromParams(params);
+        INDArray bestParams = null;
+        INDArray bestUpdaterState = null;
+        int epoch = 0;
+        try {
+            while(keepTraining) {
+                // The engine of a paused job is closed, its workers and executor cores are free until it resumes
+                if (engine.wasInterrupted()) {
+                    engine.close();
+                    engine = null;
+                    if (!awaitResume()) {
+                        break;
+                    }
+                    startEngine(network);
+                }
+
+                long fitStart = System.nanoTime();
+                engine.fitEpoch();
+                network = engine.getNetwork();
+                // An epoch ended early is not scored, the next one starts over on the data
+                if (engine.wasInterrupted()) {
+                    log.info("Interrupted job {} in epoch {} after {} s", id, epoch,
+                            String.format("%.2f", (System.nanoTime() - fitStart) / 1e9));
+                    continue;
+                }
+                double score = validate ? DataParser.score(network, validationData, validationPaths, storage) : engine.getScore();
+                metrics.recordEpoch(epoch++, engine.getExamples(), System.nanoTime() - fitStart, score,
+                        engine.getWorkers());
+                scoreReporter.report(score);
+                epochs = epoch;
+                lastScore = score;
+
+                // Copies of the best parameters so far, the network itself keeps training past them
+                if (earlyStopping.update(score)) {
+                    bestParams = network.params().dup();
+                    INDArray updaterState = network.getUpdater().getStateViewArray();
+                    bestUpdaterState = updaterState != null ? updaterState.dup() : null;
+                }
+                network.getLayerWiseConfigurations().setEpochCount(startEpoch + epoch);
+                checkpointer.onEpochEnd(network, startEpoch + epoch);
+                if (earlyStopping.shouldStop()) {
+                    log.info("Stopping job {} after {} epochs: {}", id, epoch, earlyStopping.getReason());
+                    break;
+                }
+            }
+        } finally {
+            scoreReporter.close();
+            checkpointer.close();
+            if (engine != null) {
+                engine.close();
+                engine = null;
+            }
+        }
+
+        if (bestParams != null) {
+            log.info("Keeping the model from epoch {} with {} score {}", earlyStopping.getBestEpoch(),
+                    validate ? "validation" : "training", earlyStopping.getBestScore());
+            network.setParams(bestParams);
+            if (bestUpdaterState != null) {
+                network.getUpdater().getStateViewArray().assign(bestUpdaterState);
+            }
+        }
+
+        boolean saveUpdater = true; //Preserve optimizer's state for further training
+        modelStore.save(network, normalizer, outputPath, saveUpdater);
+        exportForInference(network);
+    }
+
+    private TrainingEngine createEngine(MultiLayerNetwork network) {
+        if (JsonParser.getEngine(params).equals("parallel")) {
+            DataSetIterator trainIterator = data != null || paths != null ? DataParser.iterateDataSets(data, paths, storage) : dataIterator;
+            return new ParallelEngine(network, trainIterator, params);
+        }
+        return new SparkEngine(id, network, data, paths, storage, params);
+    }
+
+    // stop or pause may come while there is no engine to interrupt, the new engine then starts interrupted
+    private void startEngine(MultiLayerNetwork network) {
+        engine = createEngine(network);
+        if (!keepTraining || paused) {
+            engine.interrupt();
+        }
+    }
+
+    // Waits while the job is paused, returns whether it should go on training
+    private boolean awaitResume() throws InterruptedException {
+        synchronized (pauseLock) {
+            while (paused && keepTraining) {
+                pauseLock.wait();
+            }
+        }
+        return keepTraining;
+    }
+
+    // Saves the best trial as the model of the job, next to the network map that produced it
+    private void runSearch() throws IOException, InterruptedException {
+        HyperparameterSearch hyperparameterSearch = HyperparameterSearch.fromSpec(params, search);
+        List<HyperparameterSearch.Trial> trials = hyperparameterSearch.run(data, paths, validationData, validationPaths,
+                storage, () -> keepTraining);
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (HyperparameterSearch.Trial trial : trials) {
+            results.add(trial.describe());
+        }
+        searchResults = results;
+
+        HyperparameterSearch.Trial best = trials.get(0);
+        epochs = (int) best.describe().get("epochs");
+        lastScore = best.getScore();
+        log.info("Best trial of job {}: {}", id, best.describe());
+
+        String configKey = outputPath.replaceAll("\\.zip$", "") + "-config.json";
+        File configFile = File.createTempFile("search", ".json");
+        try {
+            new ObjectMapper().writeValue(configFile, best.getParams());
+            s3Fetcher.uploadFile(configFile, configKey);
+        } finally {
+            Files.deleteIfExists(configFile.toPath());
+        }
+        new ModelStore(s3Fetcher, ModelStore.getDefaultCacheDirectory()).save(best.getNetwork(), normalizer, outputPath, true);
+        exportForInference(best.getNetwork());
+    }
+
+    // Saves the inference-only copy as <output>-inference.zip, compared with the full model on the held out batches
+    private void exportForInference(MultiLayerNetwork network) throws IOException {
+        if (!JsonParser.exportForInference(params)) {
+            return;
+        }
+        boolean validate = validationData != null && !validationData.isEmpty()
+                || validationPaths != null && !validationPaths.isEmpty();
+        List<DataSet> evaluation = new ArrayList<>();
+        if (validate || data != null || paths != null) {
+            DataSetIterator iterator = validate ? DataParser.iterateDataSets(validationData, validationPaths, storage)
+                    : DataParser.iterateDataSets(data, paths, storage);
+            while (iterator.hasNext() && evaluation.size() < 20) {
+                evaluation.add(iterator.next());
+            }
+        }
+
+        String exportKey = outputPath.replaceAll("\\.zip$", "") + "-inference.zip";
+        File exportFile = File.createTempFile("inference", ".zip");
+        try {
+            Map<String, Object> report = ModelExporter.fromParams(params).export(network, normalizer, exportFile,
+                    evaluation, JsonParser.isNotRegression(params));
+            s3Fetcher.uploadFile(exportFile, exportKey);
+            exportReport = report;
+            log.info("Exported job {} for inference to {}: {}", id, exportKey, report);
+        } finally {
+            Files.deleteIfExists(exportFile.toPath());
+        }
+    }
+
+    // Training ends after the current iteration and the model is still saved
+    public void stop() {
+        synchronized (pauseLock) {
+            keepTraining = false;
+            if (state == State.RUNNING || state == State.PAUSED) {
+                state = State.STOPPING;
+            }
+            pauseLock.notifyAll();
+        }
+        interruptEngine();
+    }
+
+    /*
+    Ends the current epoch after the iteration in progress and releases the engine, the parameters and updater
+    state stay in memory until resume. A search cannot be paused.
+    */
+    public boolean pause() {
+        synchronized (pauseLock) {
+            if (search != null || state != State.RUNNING || !keepTraining) {
+                return false;
+            }
+            paused = true;
+            state = State.PAUSED;
+        }
+        interruptEngine();
+        return true;
+    }
+
+    public boolean resume() {
+        synchronized (pauseLock) {
+            if (state != State.PAUSED) {
+                return false;
+            }
+            paused = false;
+            state = State.RUNNING;
+            pauseLock.notifyAll();
+        }
+        return true;
+    }
+
+    private void interruptEngine() {
+        TrainingEngine current = engine;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public TrainingMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("id", id);
+        description.put("state", state);
+        description.put("dataPath", dataKey);
+        description.put("configPath", configKey);
+        description.put("outputPath", outputPath);
+        description.put("epochs", epochs);
+        description.put("lastScore", lastScore);
+        description.put("submitted", submitted.toString());
+        description.put("started", started != null ? started.toString() : null);
+        description.put("finished", finished != null ? finished.toString() : null);
+        description.put("error", error);
+        if (searchResults != null) {
+            description.put("search", searchResults);
+        }
+        if (exportReport != null) {
+            description.put("export", exportReport);
+        }
+        return description;
+    }
+}
@@ -0,0 +1,343 @@
+package org.trainingJAR;
+
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.StageInfo;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.deeplearning4j.spark.api.stats.SparkTrainingStats;
+import org.deeplearning4j.spark.stats.EventStats;
+
+import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Collects where the training time goes so that it can be read from /api/training/metrics.
+Iterations are timed by a training listener. With a local master the listeners run in this JVM
+and report here. On a real cluster only the driver-side numbers (epochs, stages, data loading) are collected.
+Every job has its own metrics, get() returns those of the job running on the calling thread.
+Spark stages and memory belong to the whole process.
+*/
+public class TrainingMetrics {
+
+    private static final TrainingMetrics INSTANCE = new TrainingMetrics("process");
+    private static final Map<String, TrainingMetrics> JOBS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<TrainingMetrics> CURRENT = new ThreadLocal<>();
+    private static final int MAX_EPOCHS_KEPT = 100;
+
+    private final AtomicLong iterations = new AtomicLong();
+    private final AtomicLong iterationNanos = new AtomicLong();
+    private final AtomicLong iterationExamples = new AtomicLong();
+    private final AtomicLong stages = new AtomicLong();
+    private final AtomicLong stageMillis = new AtomicLong();
+    private final AtomicLong offHeapGrowth = new AtomicLong();
+    private final AtomicLong firstIterationNanos = new AtomicLong();
+
+    private volatile long dataExamples = 0;
+    private volatile long dataBatches = 0;
+    private volatile long dataLoadNanos = 0;
+    private volatile long numParams = 0;
+    private volatile String dataStorage = "float";
+    private volatile long featureBytes = 0;
+    private volatile long floatFeatureBytes = 0;
+    private final List<Map<String, Object>> epochs = Collections.synchronizedList(new LinkedList<>());
+    private volatile Map<String, Object> trainingStats = Collections.emptyMap();
+    private volatile Map<String, Object> memoryProfile = Collections.emptyMap();
+    private volatile Map<String, Object> dataManifest = Collections.emptyMap();
+    // Seconds per startup stage, see Startup. The process starts with the JVM, a job when it starts running
+    private final Map<String, Double> startupStages = Collections.synchronizedMap(new LinkedHashMap<>());
+    private volatile long startedNanos;
+    // Examples and seconds of fitting by worker count
+    private final Map<Integer, double[]> scaling = Collections.synchronizedMap(new TreeMap<>());
+
+    private final String key;
+
+    private TrainingMetrics(String key) {
+        this.key = key;
+        this.startedNanos = System.nanoTime() - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000;
+    }
+
+    public static TrainingMetrics get() {
+        TrainingMetrics current = CURRENT.get();
+        return current != null ? current : INSTANCE;
+    }
+
+    public static TrainingMetrics getProcess() {
+        return INSTANCE;
+    }
+
+    public static TrainingMetrics forJob(String jobId) {
+        return JOBS.computeIfAbsent(jobId, TrainingMetrics::new);
+    }
+
+    public static void removeJob(String jobId) {
+        JOBS.remove(jobId);
+    }
+
+    // Makes get() return these metrics on the calling thread, null goes back to the process metrics
+    public static void setCurrent(TrainingMetrics metrics) {
+        if (metrics == null) {
+            CURRENT.remove();
+        }
+        else {
+            CURRENT.set(metrics);
+        }
+    }
+
+    private static TrainingMetrics byKey(String key) {
+        return JOBS.getOrDefault(key, INSTANCE);
+    }
+
+    public void recordDataLoad(long examples, long batches, long nanos) {
+        dataExamples = examples;
+        dataBatches = batches;
+        dataLoadNanos = nanos;
+    }
+
+    // Memory of the collected features, against what they would take as floats
+    public void recordDataMemory(String storage, long bytes, long floatBytes) {
+        dataStorage = storage;
+        featureBytes = bytes;
+        floatFeatureBytes = floatBytes;
+    }
+
+    // What the data manifest reused and decoded, see DataManifest.update
+    public void recordDataManifest(Map<String, Object> report) {
+        dataManifest = report;
+    }
+
+    public void markStarted() {
+        startedNanos = System.nanoTime();
+    }
+
+    public void recordStartupStage(String stage, long nanos) {
+        startupStages.put(stage, nanos / 1e9);
+    }
+
+    public long getDataExamples() {
+        return dataExamples;
+    }
+
+    public void setNumParams(long numParams) {
+        this.numParams = numParams;
+    }
+
+    public void recordMemoryProfile(Map<String, Object> profile) {
+        memoryProfile = profile;
+    }
+
+    public void recordEpoch(int epoch, long examples, long fitNanos, double score, int workers) {
+        double samplesPerSecond = examples / (fitNanos / 1e9);
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("epoch", epoch);
+        entry.put("examples", examples);
+        entry.put("fitSeconds", fitNanos / 1e9);
+        entry.put("samplesPerSecond", samplesPerSecond);
+        entry.put("workers", workers);
+        entry.put("samplesPerSecondPerWorker", samplesPerSecond / workers);
+        entry.put("score", score);
+        synchronized (scaling) {
+            double[] totals = scaling.computeIfAbsent(workers, w -> new double[2]);
+            totals[0] += examples;
+            totals[1] += fitNanos / 1e9;
+        }
+        synchronized (epochs) {
+            epochs.add(entry);
+            if (epochs.size() > MAX_EPOCHS_KEPT) {
+                epochs.remove(0);
+            }
+        }
+    }
+
+    // Sums the SharedTrainingMaster timings by event when stats collection is enabled
+    public void recordTrainingStats(SparkTrainingStats stats) {
+        if (stats == null) {
+            return;
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        for (String key : stats.getKeySet()) {
+            List<EventStats> events = stats.getValue(key);
+            if (events == null) {
+                continue;
+            }
+            long totalMs = 0;
+            for (EventStats event : events) {
+                totalMs += event.getDurationMs();
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("count", events.size());
+            entry.put("totalMs", totalMs);
+            summary.put(stats.getShortNameForKey(key), entry);
+        }
+        trainingStats = summary;
+    }
+
+    public BaseTrainingListener iterationListener() {
+        return new IterationListener(key);
+    }
+
+    public static SparkListener sparkListener() {
+        return new SparkListener() {
+            @Override
+            public void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+                StageInfo info = stageCompleted.stageInfo();
+                if (info.submissionTime().isDefined() && info.completionTime().isDefined()) {
+                    INSTANCE.stages.incrementAndGet();
+                    INSTANCE.stageMillis.addAndGet((Long) info.completionTime().get() - (Long) info.submissionTime().get());
+                }
+            }
+        };
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("examples", dataExamples);
+        data.put("batches", dataBatches);
+        data.put("loadSeconds", dataLoadNanos / 1e9);
+        data.put("storage", dataStorage);
+        data.put("featureBytes", featureBytes);
+        data.put("floatFeatureBytes", floatFeatureBytes);
+        data.put("compression", featureBytes == 0 ? 1 : (double) floatFeatureBytes / featureBytes);
+        if (!dataManifest.isEmpty()) {
+            data.put("manifest", dataManifest);
+        }
+        snapshot.put("dataLoading", data);
+
+        Map<String, Object> startup = new LinkedHashMap<>();
+        synchronized (startupStages) {
+            startup.put("stages", new LinkedHashMap<>(startupStages));
+        }
+        long firstIteration = firstIterationNanos.get();
+        startup.put("firstIterationSeconds", firstIteration == 0 ? null : (firstIteration - startedNanos) / 1e9);
+        snapshot.put("startup", startup);
+
+        long count = iterations.get();
+        Map<String, Object> iteration = new LinkedHashMap<>();
+        iteration.put("count", count);
+        iteration.put("meanMillis", count == 0 ? 0 : iterationNanos.get() / 1e6 / count);
+        iteration.put("samplesPerSecond", iterationNanos.get() == 0 ? 0 : iterationExamples.get() / (iterationNanos.get() / 1e9));
+        iteration.put("offHeapGrowthBytes", count == 0 ? 0 : offHeapGrowth.get() / count);
+        snapshot.put("iterations", iteration);
+
+        synchronized (epochs) {
+            snapshot.put("epochs", new ArrayList<>(epochs));
+        }
+
+        Map<String, Object> spark = new LinkedHashMap<>();
+        spark.put("stagesCompleted", INSTANCE.stages.get());
+        spark.put("stageSeconds", INSTANCE.stageMillis.get() / 1e3);
+        snapshot.put("spark", spark);
+
+        snapshot.put("scaling", scalingSnapshot());
+
+        Map<String, Object> gradientSharing = new LinkedHashMap<>();
+        gradientSharing.put("numParams", numParams);
+        gradientSharing.put("trainingStats", trainingStats);
+        snapshot.put("gradientSharing", gradientSharing);
+
+        Map<String, Object> memory = memorySnapshot();
+        memory.put("profile", memoryProfile);
+        snapshot.put("memory", memory);
+        return snapshot;
+    }
+
+    /*
+    Throughput for every worker count seen so far. The efficiency of a worker count is its samples per second
+    relative to perfectly linear scaling from the smallest worker count measured.
+    */
+    private List<Map<String, Object>> scalingSnapshot() {
+        List<Map<String, Object>> entries = new ArrayList<>();
+        synchronized (scaling) {
+            double baseline = 0;
+            for (Map.Entry<Integer, double[]> workers : scaling.entrySet()) {
+                double samplesPerSecond = workers.getValue()[0] / workers.getValue()[1];
+                double perWorker = samplesPerSecond / workers.getKey();
+                if (baseline == 0) {
+                    baseline = perWorker;
+                }
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("workers", workers.getKey());
+                entry.put("samplesPerSecond", samplesPerSecond);
+                entry.put("samplesPerSecondPerWorker", perWorker);
+                entry.put("efficiency", perWorker / baseline);
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static Map<String, Object> memorySnapshot() {
+        Map<String, Object> memory = new LinkedHashMap<>();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        memory.put("heapUsedBytes", heap.getUsed());
+        memory.put("heapMaxBytes", heap.getMax());
+        memory.put("offHeapBytes", Pointer.totalBytes());
+        memory.put("offHeapMaxBytes", Pointer.maxBytes());
+        memory.put("physicalBytes", Pointer.physicalBytes());
+
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        memory.put("gcCount", gcCount);
+        memory.put("gcMillis", gcMillis);
+        return memory;
+    }
+
+    /*
+    Times the gap between consecutive iterations, which covers the forward pass, backprop and the update.
+    The off-heap memory that is allocated and not yet freed at the end of an iteration is summed as its growth,
+    without workspaces most of the arrays of an iteration show up there until the garbage collector frees them.
+    The parallel engine shares one instance between its worker threads, so every thread keeps its own time.
+    */
+    private static class IterationListener extends BaseTrainingListener implements Serializable {
+
+        // Metrics are found by key, on an executor of a real cluster that falls back to its process metrics
+        private final String key;
+        // Time and off-heap bytes at the end of the last iteration of the calling thread
+        private final transient ThreadLocal<long[]> lastIteration = ThreadLocal.withInitial(() -> new long[2]);
+
+        private IterationListener(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void iterationDone(Model model, int iteration, int epoch) {
+            long now = System.nanoTime();
+            long offHeap = Pointer.totalBytes();
+            long[] last = lastIteration.get();
+            TrainingMetrics metrics = byKey(key);
+            metrics.firstIterationNanos.compareAndSet(0, now);
+            INSTANCE.firstIterationNanos.compareAndSet(0, now);
+            if (last[0] != 0) {
+                metrics.iterations.incrementAndGet();
+                metrics.iterationNanos.addAndGet(now - last[0]);
+                metrics.iterationExamples.addAndGet(model.batchSize());
+                metrics.offHeapGrowth.addAndGet(Math.max(0, offHeap - last[1]));
+            }
+            last[0] = now;
+            last[1] = offHeap;
+        }
+
+        // Deserialized copies on Spark executors get a fresh thread local
+        private Object readResolve() {
+            return new IterationListener(key);
+        }
+    }
+}